@@ -0,0 +1,37 @@
+package com.kvstore.api;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Iterator over the entries of a {@link KVStore#scan(ScanOptions)}, pulled
+ * from the store as it advances. A cursor may pin store resources, so it must
+ * be closed, typically with try-with-resources. An I/O failure while
+ * advancing is thrown as an {@link java.io.UncheckedIOException}.
+ */
+public interface KVCursor extends Iterator<Map.Entry<String, String>>, AutoCloseable {
+
+    @Override
+    void close();
+
+    /**
+     * @return a cursor over entries that are already in memory
+     */
+    static KVCursor of(Iterator<Map.Entry<String, String>> entries) {
+        return new KVCursor() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                return entries.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -1,8 +1,11 @@
 package com.kvstore.api;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 
 public interface KVStore {
     boolean put(String key, String value);
@@ -11,5 +14,22 @@ public interface KVStore {
     boolean batchPut(List<String> keys, List<String> values);
     boolean delete(String key);
     void close();
-}
 
+    /**
+     * Open a cursor over the entries selected by {@code options}, in key order.
+     * This default materializes the range through {@link #readKeyRange}; stores
+     * that can stream entries override it.
+     */
+    default KVCursor scan(ScanOptions options) {
+        String startKey = options.getStartKey();
+        String endKey = options.getEndKey();
+        if (startKey.compareTo(endKey) >= 0) {
+            return KVCursor.of(Collections.emptyIterator());
+        }
+        List<Map.Entry<String, String>> entries = new ArrayList<>(new TreeMap<>(readKeyRange(startKey, endKey)).entrySet());
+        if (options.isReverse()) {
+            Collections.reverse(entries);
+        }
+        return KVCursor.of(entries.subList(0, Math.min(entries.size(), options.getLimit())).iterator());
+    }
+}
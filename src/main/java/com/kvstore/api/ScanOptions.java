@@ -0,0 +1,121 @@
+package com.kvstore.api;
+
+/**
+ * Bounds and order of a {@link KVStore#scan(ScanOptions)}. By default a scan
+ * covers every key in ascending order with no limit. Setters return
+ * {@code this} so options can be chained.
+ */
+public class ScanOptions {
+    // Upper bound of an unbounded scan, as used by the stores' full scans
+    private static final String END_OF_KEYS = "\uffff";
+
+    private String startKey = "";
+    private String endKey = END_OF_KEYS;
+    private String prefix = "";
+    private int limit = Integer.MAX_VALUE;
+    private boolean reverse = false;
+
+    /**
+     * @return options for the keys in {@code [startKey, endKey)}
+     */
+    public static ScanOptions range(String startKey, String endKey) {
+        return new ScanOptions().setRange(startKey, endKey);
+    }
+
+    /**
+     * @return options for the keys that start with {@code prefix}
+     */
+    public static ScanOptions prefix(String prefix) {
+        return new ScanOptions().setPrefix(prefix);
+    }
+
+    /**
+     * Restrict the scan to keys in {@code [startKey, endKey)}.
+     */
+    public ScanOptions setRange(String startKey, String endKey) {
+        if (startKey == null || endKey == null) {
+            throw new IllegalArgumentException("Range bounds must not be null");
+        }
+        this.startKey = startKey;
+        this.endKey = endKey;
+        return this;
+    }
+
+    /**
+     * Restrict the scan to keys that start with {@code prefix}. This combines
+     * with a range: only keys satisfying both are returned.
+     */
+    public ScanOptions setPrefix(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("Prefix must not be null");
+        }
+        this.prefix = prefix;
+        return this;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Maximum number of entries the scan returns.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public ScanOptions setLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Whether entries are returned in descending key order.
+     */
+    public boolean isReverse() {
+        return reverse;
+    }
+
+    public ScanOptions setReverse(boolean reverse) {
+        this.reverse = reverse;
+        return this;
+    }
+
+    /**
+     * @return the inclusive lower bound, taking the prefix into account
+     */
+    public String getStartKey() {
+        return startKey.compareTo(prefix) >= 0 ? startKey : prefix;
+    }
+
+    /**
+     * @return the exclusive upper bound, taking the prefix into account
+     */
+    public String getEndKey() {
+        String prefixEnd = prefixEnd(prefix);
+        return endKey.compareTo(prefixEnd) <= 0 ? endKey : prefixEnd;
+    }
+
+    /**
+     * @return the smallest key greater than every key with the prefix
+     */
+    private static String prefixEnd(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return END_OF_KEYS;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ScanOptions{startKey='%s', endKey='%s', prefix='%s', limit=%d, reverse=%s}",
+                startKey, endKey, prefix, limit, reverse);
+    }
+}
@@ -2,10 +2,13 @@ package com.kvstore.client;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 public class KVClient {
     private static final Logger logger = Logger.getLogger(KVClient.class.getName());
+    private static final int RANGE_PAGE_SIZE = 1000;
     private final String host;
     private final int port;
     
@@ -45,6 +48,37 @@ public class KVClient {
         return "OK".equals(response);
     }
     
+    /**
+     * Read the entries in {@code [startKey, endKey)} a page at a time, so no
+     * single response has to hold the whole range.
+     *
+     * @return the entries in key order, or null if a request failed
+     */
+    public Map<String, String> range(String startKey, String endKey) {
+        Map<String, String> result = new LinkedHashMap<>();
+        String pageStart = startKey;
+        while (true) {
+            String response = sendCommand("RANGE|" + pageStart + "|" + endKey + "|" + RANGE_PAGE_SIZE);
+            String[] parts = response.split("\\|");
+            int first;
+            if ("OK".equals(parts[0])) {
+                first = 1;
+            } else if ("MORE".equals(parts[0]) && parts.length >= 2) {
+                first = 2;
+            } else {
+                return null;
+            }
+            for (int i = first; i < parts.length; i++) {
+                int separator = parts[i].indexOf('=');
+                result.put(parts[i].substring(0, separator), parts[i].substring(separator + 1));
+            }
+            if (first == 1) {
+                return result;
+            }
+            pageStart = parts[1];
+        }
+    }
+    
     public boolean ping() {
         String response = sendCommand("PING");
         return "PONG".equals(response);
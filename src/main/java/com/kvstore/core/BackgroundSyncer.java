@@ -0,0 +1,90 @@
+package com.kvstore.core;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Applies a {@link DurabilityPolicy} to a file: syncs inline, on a timer or
+ * after enough bytes from a background thread, or not at all.
+ */
+final class BackgroundSyncer {
+    private static final Logger logger = Logger.getLogger(BackgroundSyncer.class.getName());
+
+    interface SyncTarget {
+        void sync() throws IOException;
+    }
+
+    private final DurabilityPolicy policy;
+    private final SyncTarget target;
+    private final AtomicLong unsyncedBytes;
+    private final AtomicBoolean syncRequested;
+    private final ScheduledExecutorService scheduler;
+
+    BackgroundSyncer(String name, DurabilityPolicy policy, SyncTarget target) {
+        this.policy = policy;
+        this.target = target;
+        this.unsyncedBytes = new AtomicLong();
+        this.syncRequested = new AtomicBoolean();
+        if (policy.getMode() == DurabilityPolicy.Mode.INTERVAL) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::syncIfDirty, policy.getIntervalMillis(),
+                                             policy.getIntervalMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * Account for {@code bytes} just written. Under sync-per-write this syncs
+     * before returning; otherwise it returns immediately.
+     */
+    void afterWrite(long bytes) throws IOException {
+        switch (policy.getMode()) {
+            case SYNC_PER_WRITE:
+                target.sync();
+                break;
+            case INTERVAL:
+                if (unsyncedBytes.addAndGet(bytes) >= policy.getIntervalBytes()
+                        && syncRequested.compareAndSet(false, true)) {
+                    scheduler.execute(this::syncIfDirty);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void syncIfDirty() {
+        syncRequested.set(false);
+        if (unsyncedBytes.getAndSet(0) == 0) {
+            return;
+        }
+        try {
+            target.sync();
+        } catch (IOException e) {
+            logger.warning("Background sync failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop the background thread. Callers sync the file themselves on close.
+     */
+    void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
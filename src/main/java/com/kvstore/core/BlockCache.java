@@ -0,0 +1,202 @@
+package com.kvstore.core;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Store-wide cache of verified SSTable block contents, keyed by file ID and
+ * block offset.
+ *
+ * The capacity is split across independently locked LRU shards so concurrent
+ * readers rarely contend. Blocks are cached after their checksum has been
+ * checked, so a hit costs neither I/O nor verification.
+ */
+final class BlockCache {
+    private static final int MAX_SHARDS = 16;
+    // Small caches use fewer shards so each one still holds a useful number of blocks
+    private static final long MIN_SHARD_CAPACITY = 64 * 1024;
+    // Rough heap cost of a cached block beyond its bytes: map entry, key, its
+    // entry in the shard's per-table index and the array header
+    private static final int ENTRY_OVERHEAD = 144;
+
+    private final Shard[] shards;
+    private final long capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity the maximum cached bytes across all shards
+     */
+    BlockCache(long capacity) {
+        this.capacity = capacity;
+        int shardCount = 1;
+        while (shardCount < MAX_SHARDS && capacity / (shardCount * 2) >= MIN_SHARD_CAPACITY) {
+            shardCount *= 2;
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(capacity / shardCount);
+        }
+    }
+
+    /**
+     * @return the cached block, or null on a miss
+     */
+    byte[] get(long fileId, long offset) {
+        BlockKey key = new BlockKey(fileId, offset);
+        byte[] block = shard(key).get(key);
+        if (block != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return block;
+    }
+
+    void put(long fileId, long offset, byte[] block) {
+        BlockKey key = new BlockKey(fileId, offset);
+        evictions.add(shard(key).put(key, block));
+    }
+
+    /**
+     * Drop every block of a table that has been deleted. Each shard indexes
+     * its blocks by table, so this costs the number of the table's blocks
+     * rather than the size of the cache.
+     */
+    void invalidate(long fileId) {
+        for (Shard shard : shards) {
+            shard.removeFile(fileId);
+        }
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    long getSize() {
+        long size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    private Shard shard(BlockKey key) {
+        return shards[key.hashCode() & (shards.length - 1)];
+    }
+
+    private static long charge(byte[] block) {
+        return ENTRY_OVERHEAD + block.length;
+    }
+
+    private static final class BlockKey {
+        private final long fileId;
+        private final long offset;
+
+        BlockKey(long fileId, long offset) {
+            this.fileId = fileId;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) o;
+            return fileId == other.fileId && offset == other.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = fileId * 0x9e3779b97f4a7c15L + offset;
+            h ^= h >>> 32;
+            return (int) (h ^ (h >>> 16));
+        }
+    }
+
+    /**
+     * One LRU partition; an access-ordered LinkedHashMap under its own lock,
+     * with the keys of each table's blocks indexed for invalidation.
+     */
+    private static final class Shard {
+        private final long capacity;
+        private final LinkedHashMap<BlockKey, byte[]> blocks = new LinkedHashMap<>(64, 0.75f, true);
+        private final Map<Long, Set<BlockKey>> keysByFile = new HashMap<>();
+        private long size;
+
+        Shard(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(BlockKey key) {
+            return blocks.get(key);
+        }
+
+        /**
+         * @return the number of blocks evicted to make room
+         */
+        synchronized int put(BlockKey key, byte[] block) {
+            if (charge(block) > capacity) {
+                return 0;
+            }
+            byte[] previous = blocks.put(key, block);
+            if (previous != null) {
+                size -= charge(previous);
+            } else {
+                keysByFile.computeIfAbsent(key.fileId, id -> new HashSet<>()).add(key);
+            }
+            size += charge(block);
+
+            int evicted = 0;
+            Iterator<Map.Entry<BlockKey, byte[]>> eldest = blocks.entrySet().iterator();
+            while (size > capacity) {
+                Map.Entry<BlockKey, byte[]> entry = eldest.next();
+                size -= charge(entry.getValue());
+                forget(entry.getKey());
+                eldest.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized void removeFile(long fileId) {
+            Set<BlockKey> keys = keysByFile.remove(fileId);
+            if (keys == null) {
+                return;
+            }
+            for (BlockKey key : keys) {
+                size -= charge(blocks.remove(key));
+            }
+        }
+
+        private void forget(BlockKey key) {
+            Set<BlockKey> keys = keysByFile.get(key.fileId);
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByFile.remove(key.fileId);
+            }
+        }
+
+        synchronized long size() {
+            return size;
+        }
+    }
+}
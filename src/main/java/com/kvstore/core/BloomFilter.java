@@ -0,0 +1,143 @@
+package com.kvstore.core;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Bloom filter over SSTable keys, used to answer "definitely absent" without
+ * touching the table's index or data file.
+ *
+ * Keys are hashed once to 64 bits and the probe positions derived by double
+ * hashing. The hash is computed from the key's chars with a fixed algorithm,
+ * so persisted filters stay valid across JVMs.
+ *
+ * File format: {@code int magic | int hashCount | int wordCount | long[] bits | int crc32c}.
+ */
+final class BloomFilter {
+    private static final int MAGIC = 0x4B564246; // "KVBF"
+    private static final int MAX_HASHES = 30;
+
+    private final long[] bits;
+    private final int hashCount;
+
+    private BloomFilter(long[] bits, int hashCount) {
+        this.bits = bits;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Create an empty filter sized for {@code expectedKeys} keys.
+     */
+    static BloomFilter create(int expectedKeys, int bitsPerKey) {
+        long bitCount = Math.max(64, (long) expectedKeys * bitsPerKey);
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (bitCount + 63) / 64);
+        // ln(2) * bits per key minimises the false positive rate
+        int hashCount = (int) Math.round(bitsPerKey * Math.log(2));
+        return new BloomFilter(new long[words], Math.max(1, Math.min(MAX_HASHES, hashCount)));
+    }
+
+    void add(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long bitCount = (long) bits.length * 64;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if the key was definitely never added
+     */
+    boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long bitCount = (long) bits.length * 64;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the size of the bit array in bytes
+     */
+    long getSizeInBytes() {
+        return (long) bits.length * 8;
+    }
+
+    /**
+     * 64-bit FNV-1a over the key's chars, finished with the MurmurHash3 mixer
+     * to spread the bits.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    void save(Path path) throws IOException {
+        try (FileOutputStream file = new FileOutputStream(path.toFile())) {
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(hashCount);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+            out.flush();
+
+            DataOutputStream checksumOut = new DataOutputStream(file);
+            checksumOut.writeInt((int) crc.getValue());
+            checksumOut.flush();
+            file.getFD().sync();
+        }
+    }
+
+    /**
+     * @return the filter stored at {@code path}
+     * @throws IOException if the file is missing, truncated or corrupt
+     */
+    static BloomFilter load(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < 16) {
+            throw new IOException("Truncated Bloom filter: " + path);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - 4);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a Bloom filter: " + path);
+            }
+            int hashCount = in.readInt();
+            int words = in.readInt();
+            if (hashCount < 1 || hashCount > MAX_HASHES || words < 1 || (long) words * 8 + 16 != bytes.length) {
+                throw new IOException("Corrupt Bloom filter: " + path);
+            }
+            long[] bits = new long[words];
+            for (int i = 0; i < words; i++) {
+                bits[i] = in.readLong();
+            }
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new IOException("Bloom filter checksum mismatch: " + path);
+            }
+            return new BloomFilter(bits, hashCount);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.kvstore.core;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One unit of compaction work, chosen by a {@link CompactionStrategy}: the
+ * SSTables to merge and the level their output is installed in.
+ */
+final class Compaction {
+    private final int level;
+    private final int outputLevel;
+    private final List<SSTable> inputs;
+    private final long maxOutputSize;
+
+    /**
+     * @param level the level the compaction was chosen for
+     * @param outputLevel the level that receives the merged tables
+     * @param inputs tables to merge, oldest first
+     * @param maxOutputSize data size at which the merge starts a new output table
+     */
+    Compaction(int level, int outputLevel, List<SSTable> inputs, long maxOutputSize) {
+        this.level = level;
+        this.outputLevel = outputLevel;
+        this.inputs = Collections.unmodifiableList(inputs);
+        this.maxOutputSize = maxOutputSize;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    int getOutputLevel() {
+        return outputLevel;
+    }
+
+    List<SSTable> getInputs() {
+        return inputs;
+    }
+
+    long getMaxOutputSize() {
+        return maxOutputSize;
+    }
+
+    /**
+     * @return whether the single input can move to the output level as it is,
+     *         with nothing to merge it against
+     */
+    boolean isTrivialMove() {
+        return inputs.size() == 1 && outputLevel != level;
+    }
+
+    @Override
+    public String toString() {
+        return "Compaction{level=" + level + ", outputLevel=" + outputLevel + ", inputs=" + inputs.size() + "}";
+    }
+}
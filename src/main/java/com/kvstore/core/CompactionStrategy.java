@@ -0,0 +1,49 @@
+package com.kvstore.core;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which SSTables {@link SSTableManager} merges and where the result
+ * goes. The manager owns the tables, runs the merges and installs them; a
+ * strategy only chooses. Its methods are called with the manager's install
+ * lock held, so implementations need no locking of their own.
+ */
+interface CompactionStrategy {
+
+    /**
+     * Build the strategy selected by {@link StoreOptions#getCompactionStyle()}.
+     */
+    static CompactionStrategy create(StoreOptions options) {
+        switch (options.getCompactionStyle()) {
+            case SIZE_TIERED:
+                return new SizeTieredCompactionStrategy(options);
+            case LEVELED:
+            default:
+                return new LeveledCompactionStrategy(options);
+        }
+    }
+
+    /**
+     * @return how many levels the manager keeps; flushes always go to level 0,
+     *         and tables loaded from a deeper level move to the last one
+     */
+    int getLevelCount();
+
+    /**
+     * Choose the next background compaction.
+     *
+     * @param levels the current tables; level 0 oldest first, deeper levels in key order
+     * @param busy tables claimed by compactions that are still running; the
+     *             result must not include any of them
+     * @return the compaction to run, or null if none is needed
+     */
+    Compaction pick(List<List<SSTable>> levels, Set<SSTable> busy);
+
+    /**
+     * Choose a compaction of every table, for an explicit full compaction.
+     * No table is busy when this is called.
+     *
+     * @return null if there are no tables
+     */
+    Compaction pickAll(List<List<SSTable>> levels);
+}
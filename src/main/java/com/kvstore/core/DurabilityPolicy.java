@@ -0,0 +1,66 @@
+package com.kvstore.core;
+
+/**
+ * How eagerly a store forces its writes to stable storage.
+ */
+public class DurabilityPolicy {
+
+    public enum Mode {
+        SYNC_PER_WRITE, // fsync before acknowledging every write
+        INTERVAL,       // fsync from a background thread every N ms or N bytes
+        OS_BUFFERED     // never fsync explicitly, leave write-back to the OS
+    }
+
+    private static final DurabilityPolicy SYNC_PER_WRITE = new DurabilityPolicy(Mode.SYNC_PER_WRITE, 0, 0);
+    private static final DurabilityPolicy OS_BUFFERED = new DurabilityPolicy(Mode.OS_BUFFERED, 0, 0);
+
+    private final Mode mode;
+    private final long intervalMillis;
+    private final long intervalBytes;
+
+    private DurabilityPolicy(Mode mode, long intervalMillis, long intervalBytes) {
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+        this.intervalBytes = intervalBytes;
+    }
+
+    public static DurabilityPolicy syncPerWrite() {
+        return SYNC_PER_WRITE;
+    }
+
+    /**
+     * Sync in the background once {@code intervalMillis} have passed or
+     * {@code intervalBytes} have been written since the last sync, whichever
+     * comes first. A crash can lose writes acknowledged within that window.
+     */
+    public static DurabilityPolicy interval(long intervalMillis, long intervalBytes) {
+        if (intervalMillis <= 0 || intervalBytes <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive");
+        }
+        return new DurabilityPolicy(Mode.INTERVAL, intervalMillis, intervalBytes);
+    }
+
+    public static DurabilityPolicy osBuffered() {
+        return OS_BUFFERED;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public long getIntervalBytes() {
+        return intervalBytes;
+    }
+
+    @Override
+    public String toString() {
+        if (mode == Mode.INTERVAL) {
+            return String.format("INTERVAL(%d ms, %d bytes)", intervalMillis, intervalBytes);
+        }
+        return mode.name();
+    }
+}
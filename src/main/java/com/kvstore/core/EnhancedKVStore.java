@@ -1,61 +1,124 @@
 package com.kvstore.core;
+import com.kvstore.api.KVCursor;
 import com.kvstore.api.KVStore;
+import com.kvstore.api.ScanOptions;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
+/**
+ * LSM-style store: writes go to the WAL and a sorted in-memory memtable, which
+ * is flushed to SSTables when it fills up.
+ *
+ * Writers serialise on a store lock so that WAL order matches memtable order.
+ * Readers never take it. A full memtable is frozen and swapped for an empty one,
+ * and a background thread writes the frozen one to an SSTable. Until the flush
+ * is installed, reads consult the active memtable, then the frozen one, then
+ * SSTables; the frozen memtable is published before the swap and retired only
+ * after its SSTable is, so every write is visible in at least one of them.
+ *
+ * A write takes its WAL sequence under the store lock but reaches the memtable
+ * only once its WAL batch is durable; writes are applied in sequence order, so
+ * a memtable always holds a durable prefix of the log. If a batch fails, the
+ * WAL refuses all further records, the failed writes are dropped without ever
+ * becoming readable, and later writes are rejected; reopening the store
+ * replays only what the WAL holds.
+ */
 public class EnhancedKVStore implements KVStore {
     private static final Logger logger = Logger.getLogger(EnhancedKVStore.class.getName());
-    private static final int MEMTABLE_SIZE_THRESHOLD = 10000; // Flush memtable after 10k entries
     private static final long CHECKPOINT_INTERVAL = 60000; // Checkpoint every 60 seconds
+    private static final long FLUSH_RETRY_DELAY = 1000;
+    private static final double WRITE_SLOWDOWN_RATIO = 0.75; // Start delaying writes at 75% of the budget
+    private static final long MAX_WRITE_DELAY_NANOS = 1_000_000; // Per-write delay just below the budget
     
     private final String dataDirectory;
-    private final ReentrantReadWriteLock lock;
+    private final ReentrantLock lock;
+    private final Condition flushCompleted;
     private final WAL wal;
     private final SSTableManager sstableManager;
-    private final Map<String, String> memtable; // In-memory table for recent writes
-    private final Set<String> deletedKeys; // Track deleted keys in memtable
+    private final ExecutorService flusher;
+    private final long memtableSize;
+    private final boolean offHeapMemtable;
+    private final long slowdownBytes;
+    private final AtomicLong delayedWrites;
+    private final AtomicLong stalledWrites;
+    private volatile Memtable memtable; // Active memtable for recent writes
+    private volatile Memtable immutableMemtable; // Frozen memtable being flushed, or null
+    private volatile boolean closing; // Set once close() starts; flushes then stop retrying
+    private volatile boolean flushAbandoned; // A frozen memtable was left to WAL replay
+    private volatile boolean closed;
     
+    // Logged writes not yet applied to the memtable, in sequence order. Guarded by lock.
+    private final ArrayDeque<PendingWrite> unpublished = new ArrayDeque<>();
     private long lastCheckpoint;
-    private int writeCount;
 
     public EnhancedKVStore(String dataDirectory) throws IOException {
+        this(dataDirectory, new StoreOptions());
+    }
+    
+    public EnhancedKVStore(String dataDirectory, StoreOptions options) throws IOException {
         this.dataDirectory = dataDirectory;
-        this.lock = new ReentrantReadWriteLock();
-        this.wal = new WAL(dataDirectory);
-        this.sstableManager = new SSTableManager(dataDirectory);
-        this.memtable = new ConcurrentHashMap<>();
-        this.deletedKeys = ConcurrentHashMap.newKeySet();
+        this.lock = new ReentrantLock();
+        this.flushCompleted = lock.newCondition();
+        this.wal = new WAL(dataDirectory, options);
+        this.sstableManager = new SSTableManager(dataDirectory, options);
+        this.offHeapMemtable = options.isMemtableOffHeap();
+        this.memtable = Memtable.create(offHeapMemtable);
+        this.memtableSize = options.getMemtableSize();
+        this.slowdownBytes = (long) (memtableSize * WRITE_SLOWDOWN_RATIO);
+        this.delayedWrites = new AtomicLong();
+        this.stalledWrites = new AtomicLong();
+        this.flusher = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "memtable-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
         this.lastCheckpoint = System.currentTimeMillis();
-        this.writeCount = 0;
         
-        // Recover from WAL on startup
-        recoverFromWAL();
+        // Never hand out a sequence number that an SSTable already holds
+        wal.advanceSequence(sstableManager.getMaxSequence());
+        
+        // Recover from WAL on startup; a store missing part of its history must not open
+        try {
+            recoverFromWAL();
+        } catch (IOException e) {
+            flusher.shutdown();
+            memtable.release();
+            wal.close();
+            sstableManager.close();
+            throw e;
+        }
         
         logger.info("Enhanced KV Store initialized with WAL and SSTable support");
     }
 
-    private void recoverFromWAL() {
+    private void recoverFromWAL() throws IOException {
         try {
             wal.replay(new WAL.RecoveryHandler() {
                 @Override
-                public void handleOperation(String operation, String key, String value, long timestamp) {
+                public void handleOperation(String operation, String key, String value, long sequence) {
                     if ("PUT".equals(operation)) {
-                        memtable.put(key, value);
-                        deletedKeys.remove(key);
+                        memtable.put(key, new VersionedValue(sequence, value));
                     } else if ("DELETE".equals(operation)) {
-                        memtable.remove(key);
-                        deletedKeys.add(key);
+                        memtable.put(key, new VersionedValue(sequence, null));
                     }
                 }
             });
             
-            logger.info("Recovered " + memtable.size() + " entries from WAL");
+            logger.info("Recovered " + memtable.getLiveCount() + " entries from WAL");
             
         } catch (IOException e) {
             logger.severe("Failed to recover from WAL: " + e.getMessage());
+            throw e;
         }
     }
     @Override
@@ -64,36 +127,135 @@ public class EnhancedKVStore implements KVStore {
             return false;
         }
         
-        lock.writeLock().lock();
+        throttleWrites();
+        CompletableFuture<Long> durable;
+        lock.lock();
         try {
-            // Write to WAL first
-            try {
-                wal.append("PUT", key, value);
-            } catch (IOException e) {
-                logger.severe("Failed to write to WAL: " + e.getMessage());
-                return false;
+            durable = applyPut(key, value);
+        } finally {
+            lock.unlock();
+        }
+        
+        // Wait for the WAL outside the store lock so concurrent writers share an fsync
+        return awaitPublished(durable);
+    }
+    
+    /**
+     * Log a put to the WAL and queue it for the memtable. Must be called with
+     * the store lock held so WAL order matches memtable order.
+     *
+     * @return the pending WAL record, or null if it could not be logged
+     */
+    private CompletableFuture<Long> applyPut(String key, String value) {
+        WAL.Submission submission;
+        try {
+            submission = wal.submit("PUT", key, value);
+        } catch (IOException e) {
+            logger.severe("Failed to write to WAL: " + e.getMessage());
+            return null;
+        }
+        return enqueue(key, new VersionedValue(submission.getSequence(), value), submission.getDurable());
+    }
+    
+    /**
+     * Queue a logged write to be applied once it is durable. Must be called
+     * with the store lock held, in the order the writes were logged.
+     */
+    private CompletableFuture<Long> enqueue(String key, VersionedValue value, CompletableFuture<Long> durable) {
+        unpublished.add(new PendingWrite(key, value, durable));
+        // Without group commit the record is already durable
+        publishDurableWrites();
+        return durable;
+    }
+    
+    /**
+     * Apply queued writes to the memtable, in sequence order, as far as the
+     * WAL has made them durable. A failed write is dropped; the WAL stops at
+     * its first failure, so every write queued after it fails as well. Must be
+     * called with the store lock held.
+     */
+    private void publishDurableWrites() {
+        PendingWrite write;
+        while ((write = unpublished.peek()) != null && write.durable.isDone()) {
+            unpublished.poll();
+            if (write.durable.isCompletedExceptionally()) {
+                continue;
             }
-            
-            // Update memtable
-            memtable.put(key, value);
-            deletedKeys.remove(key);
-            writeCount++;
-            
-            // Check if memtable should be flushed
-            if (writeCount >= MEMTABLE_SIZE_THRESHOLD) {
-                flushMemtable();
+            memtable.put(write.key, write.value);
+            afterWrite();
+        }
+    }
+    
+    /**
+     * Wait until a write is durable and then make sure it, and every write
+     * logged before it, is in the memtable.
+     *
+     * @return whether the write succeeded
+     */
+    private boolean awaitPublished(CompletableFuture<Long> durable) {
+        boolean success = awaitDurable(durable);
+        if (durable != null) {
+            lock.lock();
+            try {
+                publishDurableWrites();
+            } finally {
+                lock.unlock();
             }
-            
-            // Check if checkpoint is needed
-            long now = System.currentTimeMillis();
-            if (now - lastCheckpoint > CHECKPOINT_INTERVAL) {
-                checkpoint();
+        }
+        return success;
+    }
+    
+    /**
+     * Hand the memtable to the flusher once it is full or a checkpoint is due.
+     * Must be called with the store lock held.
+     */
+    private void afterWrite() {
+        // Check if memtable should be flushed
+        if (memtable.getApproximateBytes() >= memtableSize) {
+            if (immutableMemtable != null) {
+                stalledWrites.incrementAndGet();
+                logger.fine("Writes stalled waiting for memtable flush");
             }
-            
+            freezeMemtable();
+        }
+        
+        // Check if checkpoint is needed
+        long now = System.currentTimeMillis();
+        if (now - lastCheckpoint > CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+    }
+    
+    /**
+     * Slow writers down while a flush is running and the active memtable is
+     * approaching its budget, so the flush can catch up before writes stall
+     * outright. The delay grows linearly towards the budget and is taken
+     * before acquiring the store lock so readers and other work are unaffected.
+     */
+    private void throttleWrites() {
+        if (immutableMemtable == null) {
+            return;
+        }
+        long bytes = memtable.getApproximateBytes();
+        if (bytes < slowdownBytes) {
+            return;
+        }
+        long excess = Math.min(bytes, memtableSize) - slowdownBytes;
+        long delay = Math.max(1, MAX_WRITE_DELAY_NANOS * excess / Math.max(1, memtableSize - slowdownBytes));
+        delayedWrites.incrementAndGet();
+        LockSupport.parkNanos(delay);
+    }
+    
+    private boolean awaitDurable(CompletableFuture<Long> durable) {
+        if (durable == null) {
+            return false;
+        }
+        try {
+            WAL.await(durable);
             return true;
-            
-        } finally {
-            lock.writeLock().unlock();
+        } catch (IOException e) {
+            logger.severe("Failed to sync WAL: " + e.getMessage());
+            return false;
         }
     }
     
@@ -103,63 +265,103 @@ public class EnhancedKVStore implements KVStore {
             return Optional.empty();
         }
         
-        lock.readLock().lock();
+        // Check memtables first (most recent data); a tombstone hides older values.
+        // The active one must be read before the frozen one, which is swapped in first.
+        VersionedValue value = lookup(memtable, key);
+        if (value == null) {
+            value = lookup(immutableMemtable, key);
+        }
+        if (value != null) {
+            return Optional.ofNullable(value.getValue());
+        }
+        
+        // Check SSTables
         try {
-            // Check if key was deleted in memtable
-            if (deletedKeys.contains(key)) {
-                return Optional.empty();
-            }
-            
-            // Check memtable first (most recent data)
-            String value = memtable.get(key);
-            if (value != null) {
-                return Optional.of(value);
-            }
-            
-            // Check SSTables
-            try {
-                value = sstableManager.get(key);
-                return Optional.ofNullable(value);
-            } catch (IOException e) {
-                logger.severe("Error reading from SSTables: " + e.getMessage());
-                return Optional.empty();
-            }
-            
-        } finally {
-            lock.readLock().unlock();
+            return Optional.ofNullable(sstableManager.get(key));
+        } catch (IOException e) {
+            logger.severe("Error reading from SSTables: " + e.getMessage());
+            return Optional.empty();
         }
     }
     
     @Override
     public Map<String, String> readKeyRange(String startKey, String endKey) {
-        lock.readLock().lock();
-        try {
-            Map<String, String> result = new TreeMap<>();
-            
-            // Get range from SSTables
-            try {
-                Map<String, String> sstableRange = sstableManager.getRange(startKey, endKey);
-                result.putAll(sstableRange);
-            } catch (IOException e) {
-                logger.severe("Error reading range from SSTables: " + e.getMessage());
-            }
-            
-            // Override with memtable data (newer values)
-            for (Map.Entry<String, String> entry : memtable.entrySet()) {
-                String key = entry.getKey();
-                if (key.compareTo(startKey) >= 0 && key.compareTo(endKey) < 0) {
-                    if (!deletedKeys.contains(key)) {
-                        result.put(key, entry.getValue());
-                    } else {
-                        result.remove(key);
-                    }
+        Map<String, String> result = new TreeMap<>();
+        if (startKey.compareTo(endKey) >= 0) {
+            return result;
+        }
+        
+        try (SSTableManager.RangeScan scan = openScan(startKey, endKey, false)) {
+            while (scan.next()) {
+                if (!scan.value().isTombstone()) {
+                    result.put(scan.key(), scan.value().getValue());
                 }
             }
-            
-            return result;
-            
+        } catch (IOException e) {
+            logger.severe("Error reading range from SSTables: " + e.getMessage());
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Stream a range without materializing it. SSTables are read a block at a
+     * time as the cursor advances and stay pinned until it is closed; the
+     * memtables' share of the range is copied up front, which their size bounds.
+     */
+    @Override
+    public KVCursor scan(ScanOptions options) {
+        String startKey = options.getStartKey();
+        String endKey = options.getEndKey();
+        if (startKey.compareTo(endKey) >= 0 || options.getLimit() == 0) {
+            return KVCursor.of(Collections.emptyIterator());
+        }
+        try {
+            return new ScanCursor(openScan(startKey, endKey, options.isReverse()), options.getLimit());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening scan", e);
+        }
+    }
+    
+    /**
+     * Merge the memtables and SSTables over a range in one pass; the newest
+     * entry per key wins.
+     */
+    private SSTableManager.RangeScan openScan(String startKey, String endKey, boolean reverse) throws IOException {
+        // Copy the memtable slices before reading SSTables, in the same order as
+        // read(), so a concurrent flush leaves the data in at least one place
+        List<Map.Entry<String, VersionedValue>> active = slice(memtable, startKey, endKey);
+        List<Map.Entry<String, VersionedValue>> frozen = slice(immutableMemtable, startKey, endKey);
+        if (reverse) {
+            Collections.reverse(active);
+            Collections.reverse(frozen);
+        }
+        return sstableManager.scan(startKey, endKey, List.of(SortedCursor.of(active), SortedCursor.of(frozen)), reverse);
+    }
+    
+    /**
+     * Look a key up in a memtable that may be retired concurrently. A retired
+     * memtable is skipped: its contents are already in SSTables.
+     */
+    private static VersionedValue lookup(Memtable table, String key) {
+        if (table == null || !table.retain()) {
+            return null;
+        }
+        try {
+            return table.get(key);
         } finally {
-            lock.readLock().unlock();
+            table.release();
+        }
+    }
+    
+    private static List<Map.Entry<String, VersionedValue>> slice(Memtable table, String startKey, String endKey) {
+        if (table == null || !table.retain()) {
+            return Collections.emptyList();
+        }
+        try {
+            return table.range(startKey, endKey);
+        } finally {
+            table.release();
         }
     }
     
@@ -169,24 +371,38 @@ public class EnhancedKVStore implements KVStore {
             return false;
         }
         
-        lock.writeLock().lock();
+        boolean allSuccess = true;
+        List<CompletableFuture<Long>> pending = new ArrayList<>(keys.size());
+        
+        throttleWrites();
+        lock.lock();
         try {
-            boolean allSuccess = true;
-            
             for (int i = 0; i < keys.size(); i++) {
                 String key = keys.get(i);
                 String value = values.get(i);
                 
-                if (!put(key, value)) {
+                if (key == null || value == null) {
                     allSuccess = false;
+                    continue;
                 }
+                pending.add(applyPut(key, value));
             }
-            
-            return allSuccess;
-            
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
+        }
+        
+        for (CompletableFuture<Long> durable : pending) {
+            if (!awaitDurable(durable)) {
+                allSuccess = false;
+            }
+        }
+        lock.lock();
+        try {
+            publishDurableWrites();
+        } finally {
+            lock.unlock();
         }
+        return allSuccess;
     }
     
     @Override
@@ -195,92 +411,192 @@ public class EnhancedKVStore implements KVStore {
             return false;
         }
         
-        lock.writeLock().lock();
+        throttleWrites();
+        CompletableFuture<Long> durable;
+        lock.lock();
         try {
             // Write delete to WAL
+            WAL.Submission submission;
             try {
-                wal.append("DELETE", key, null);
+                submission = wal.submit("DELETE", key, null);
             } catch (IOException e) {
                 logger.severe("Failed to write delete to WAL: " + e.getMessage());
                 return false;
             }
             
-            // Remove from memtable and mark as deleted
-            memtable.remove(key);
-            deletedKeys.add(key);
-            writeCount++;
-            
-            // Check if memtable should be flushed
-            if (writeCount >= MEMTABLE_SIZE_THRESHOLD) {
-                flushMemtable();
-            }
-            
-            return true;
+            // Queue a tombstone that hides any older value
+            durable = enqueue(key, new VersionedValue(submission.getSequence(), null), submission.getDurable());
             
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
+        
+        return awaitPublished(durable);
     }
     
     /**
-     * Flush the memtable to SSTable.
+     * Freeze the active memtable, swap in an empty one and schedule the frozen
+     * one for flushing. If the previous flush is still running, waits for it so
+     * that at most one frozen memtable exists. Must be called with the store
+     * lock held.
      */
-    private void flushMemtable() {
+    private void freezeMemtable() {
         if (memtable.isEmpty()) {
             return;
         }
+        awaitFlush();
+        if (flushAbandoned) {
+            return;
+        }
+        
+        // Publish the frozen memtable before replacing the active one
+        Memtable frozen = memtable;
+        immutableMemtable = frozen;
+        memtable = Memtable.create(offHeapMemtable);
         
         try {
-            // Create a copy of memtable data
-            Map<String, String> dataToFlush = new HashMap<>(memtable);
-            
-            // Create new SSTable
-            sstableManager.createSSTable(dataToFlush);
-            
-            // Clear memtable and reset counters
-            memtable.clear();
-            deletedKeys.clear();
-            writeCount = 0;
-            
-            logger.info("Flushed memtable to SSTable with " + dataToFlush.size() + " entries");
-            
+            flusher.execute(() -> flushInBackground(frozen));
+        } catch (RejectedExecutionException e) {
+            // Closing: flush in the caller instead
+            if (!flushImmutable(frozen)) {
+                abandonFlush();
+            }
+        }
+    }
+    
+    /**
+     * Wait until the frozen memtable, if any, has been flushed or its flush
+     * abandoned. Must be called with the store lock held.
+     */
+    private void awaitFlush() {
+        while (immutableMemtable != null && !flushAbandoned) {
+            flushCompleted.awaitUninterruptibly();
+        }
+    }
+    
+    /**
+     * Flush a frozen memtable, retrying failures until the store starts
+     * closing or the WAL has failed; nobody waits on a flush that cannot succeed.
+     */
+    private void flushInBackground(Memtable frozen) {
+        while (!flushImmutable(frozen)) {
+            if (closing || wal.isFailed()) {
+                abandonFlush();
+                return;
+            }
+            try {
+                Thread.sleep(FLUSH_RETRY_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandonFlush();
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Give up on the frozen memtable. It stays in place and the WAL keeps its
+     * records, so its writes are replayed when the store is next opened.
+     */
+    private void abandonFlush() {
+        lock.lock();
+        try {
+            flushAbandoned = true;
+            flushCompleted.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        logger.severe("Abandoned memtable flush; its writes remain in the WAL for replay");
+    }
+    
+    /**
+     * Write a frozen memtable to an SSTable, retire it and let the WAL drop
+     * the segments it covers.
+     *
+     * @return whether the flush succeeded; on failure the memtable stays in place
+     */
+    private boolean flushImmutable(Memtable frozen) {
+        // A write whose WAL batch failed must not become permanent
+        try {
+            WAL.await(wal.barrier());
+        } catch (IOException e) {
+            logger.severe("Not flushing memtable whose WAL records are not durable: " + e.getMessage());
+            return false;
+        }
+        
+        // Tombstones are flushed too, so a delete keeps hiding older values in SSTables
+        // The memtable is written straight from its sorted cursor without a copy
+        int entryCount = frozen.size();
+        try {
+            sstableManager.createSSTable(frozen.cursor(), entryCount);
         } catch (IOException e) {
             logger.severe("Failed to flush memtable: " + e.getMessage());
+            return false;
+        }
+        logger.info("Flushed memtable to SSTable with " + entryCount + " entries");
+        
+        // Only now is it safe for the WAL to forget these operations. Every
+        // later write is in the active memtable with a higher sequence.
+        try {
+            wal.markFlushed(frozen.getMaxSequence());
+        } catch (IOException e) {
+            // The records are replayed again on restart, which is harmless
+            logger.warning("Failed to mark WAL flushed: " + e.getMessage());
         }
+        
+        // Retire the frozen memtable now that its SSTable is installed
+        lock.lock();
+        try {
+            immutableMemtable = null;
+            flushCompleted.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        frozen.release();
+        return true;
     }
     
     /**
-     * Create a checkpoint by flushing memtable and truncating WAL.
+     * Write all buffered writes to SSTables and wait until they are installed.
      */
-    private void checkpoint() {
+    public void flush() {
+        lock.lock();
         try {
-            // Flush memtable
-            flushMemtable();
-            
-            // Truncate WAL
-            wal.truncate();
-            
-            lastCheckpoint = System.currentTimeMillis();
-            
-            logger.info("Checkpoint completed");
-            
-        } catch (IOException e) {
-            logger.severe("Failed to create checkpoint: " + e.getMessage());
+            freezeMemtable();
+            awaitFlush();
+        } finally {
+            lock.unlock();
         }
     }
     
     /**
-     * Force a compaction of SSTables.
+     * Create a checkpoint by flushing the memtable in the background. Fully
+     * flushed WAL segments are removed by the WAL in the background.
+     */
+    private void checkpoint() {
+        freezeMemtable();
+        lastCheckpoint = System.currentTimeMillis();
+        logger.info("Checkpoint started");
+    }
+    
+    /**
+     * @return the sequence number of the most recent mutation; every write
+     *         visible in the store has a sequence at or below it
+     */
+    public long getLastSequence() {
+        return wal.getLastSequence();
+    }
+    
+    /**
+     * Force a compaction of SSTables and wait for it. The merge runs on the
+     * compaction pool without the store lock, so writers are not blocked.
      */
     public void compact() {
-        lock.writeLock().lock();
         try {
             sstableManager.compact();
             logger.info("Forced SSTable compaction");
         } catch (IOException e) {
             logger.severe("Failed to compact SSTables: " + e.getMessage());
-        } finally {
-            lock.writeLock().unlock();
         }
     }
     
@@ -288,7 +604,8 @@ public class EnhancedKVStore implements KVStore {
      * Get statistics about the store.
      */
     public StoreStats getStats() {
-        lock.readLock().lock();
+        // Held so the memtable counts are not read mid-swap
+        lock.lock();
         try {
             SSTableManager.SSTableStats sstableStats = sstableManager.getStats();
             long walSize = 0;
@@ -298,26 +615,62 @@ public class EnhancedKVStore implements KVStore {
                 logger.warning("Failed to get WAL size: " + e.getMessage());
             }
             
+            int memtableEntries = memtable.getLiveCount();
+            int tombstoneCount = memtable.getTombstoneCount();
+            long memtableBytes = memtable.getApproximateBytes();
+            Memtable frozen = immutableMemtable;
+            if (frozen != null) {
+                memtableEntries += frozen.getLiveCount();
+                tombstoneCount += frozen.getTombstoneCount();
+                memtableBytes += frozen.getApproximateBytes();
+            }
+            
             return new StoreStats(
-                memtable.size(),
-                deletedKeys.size(),
+                memtableEntries,
+                tombstoneCount,
+                memtableBytes,
+                delayedWrites.get(),
+                stalledWrites.get(),
                 sstableStats.getSSTableCount(),
                 sstableStats.getTotalEntries(),
                 sstableStats.getTotalSize(),
-                walSize
+                sstableStats.getBloomFilterNegatives(),
+                sstableStats.getBlockCacheHits(),
+                sstableStats.getBlockCacheMisses(),
+                sstableStats.getBlockCacheEvictions(),
+                sstableStats.getLevelCounts(),
+                sstableStats.getPendingCompactions(),
+                walSize,
+                wal.getReplayedRecords(),
+                wal.getReplayMillis(),
+                wal.getDurability()
             );
             
         } finally {
-            lock.readLock().unlock();
+            lock.unlock();
         }
     }
     
     @Override
     public void close() {
-        lock.writeLock().lock();
+        lock.lock();
         try {
-            // Flush memtable before closing
-            flushMemtable();
+            if (closed) {
+                return;
+            }
+            
+            // Flush memtables before closing; a flush that keeps failing is
+            // abandoned rather than retried forever
+            closing = true;
+            publishDurableWrites();
+            freezeMemtable();
+            awaitFlush();
+            closed = true;
+            flusher.shutdown();
+            memtable.release();
+            if (flushAbandoned && immutableMemtable != null) {
+                immutableMemtable.release();
+            }
             
             // Close components
             wal.close();
@@ -326,7 +679,79 @@ public class EnhancedKVStore implements KVStore {
             logger.info("Enhanced KV Store closed");
             
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * A write that is logged but not yet applied to the memtable.
+     */
+    private static final class PendingWrite {
+        final String key;
+        final VersionedValue value;
+        final CompletableFuture<Long> durable;
+
+        PendingWrite(String key, VersionedValue value, CompletableFuture<Long> durable) {
+            this.key = key;
+            this.value = value;
+            this.durable = durable;
+        }
+    }
+    
+    /**
+     * Live entries of a merged range scan, up to a limit. The scan is closed
+     * as soon as it is exhausted, so a cursor read to the end releases its
+     * SSTables even if the caller forgets to close it.
+     */
+    private static final class ScanCursor implements KVCursor {
+        private final SSTableManager.RangeScan scan;
+        private int remaining;
+        private Map.Entry<String, String> pending;
+        private boolean done;
+
+        ScanCursor(SSTableManager.RangeScan scan, int limit) {
+            this.scan = scan;
+            this.remaining = limit;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (pending == null && !done) {
+                pending = advance();
+            }
+            return pending != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = pending;
+            pending = null;
+            return entry;
+        }
+
+        private Map.Entry<String, String> advance() {
+            try {
+                while (remaining > 0 && scan.next()) {
+                    if (!scan.value().isTombstone()) {
+                        remaining--;
+                        return new AbstractMap.SimpleImmutableEntry<>(scan.key(), scan.value().getValue());
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException("Error scanning SSTables", e);
+            }
+            close();
+            return null;
+        }
+
+        @Override
+        public void close() {
+            done = true;
+            scan.close();
         }
     }
     
@@ -336,19 +761,47 @@ public class EnhancedKVStore implements KVStore {
     public static class StoreStats {
         private final int memtableSize;
         private final int deletedKeysCount;
+        private final long memtableBytes;
+        private final long delayedWrites;
+        private final long stalledWrites;
         private final int sstableCount;
         private final int totalEntries;
         private final long totalSize;
+        private final long bloomFilterNegatives;
+        private final long blockCacheHits;
+        private final long blockCacheMisses;
+        private final long blockCacheEvictions;
+        private final int[] levelCounts;
+        private final int pendingCompactions;
         private final long walSize;
+        private final long walReplayRecords;
+        private final long walReplayMillis;
+        private final DurabilityPolicy durability;
         
-        public StoreStats(int memtableSize, int deletedKeysCount, int sstableCount,
-                         int totalEntries, long totalSize, long walSize) {
+        public StoreStats(int memtableSize, int deletedKeysCount, long memtableBytes,
+                         long delayedWrites, long stalledWrites, int sstableCount,
+                         int totalEntries, long totalSize, long bloomFilterNegatives,
+                         long blockCacheHits, long blockCacheMisses, long blockCacheEvictions,
+                         int[] levelCounts, int pendingCompactions, long walSize,
+                         long walReplayRecords, long walReplayMillis, DurabilityPolicy durability) {
             this.memtableSize = memtableSize;
             this.deletedKeysCount = deletedKeysCount;
+            this.memtableBytes = memtableBytes;
+            this.delayedWrites = delayedWrites;
+            this.stalledWrites = stalledWrites;
             this.sstableCount = sstableCount;
             this.totalEntries = totalEntries;
             this.totalSize = totalSize;
+            this.bloomFilterNegatives = bloomFilterNegatives;
+            this.blockCacheHits = blockCacheHits;
+            this.blockCacheMisses = blockCacheMisses;
+            this.blockCacheEvictions = blockCacheEvictions;
+            this.levelCounts = levelCounts.clone();
+            this.pendingCompactions = pendingCompactions;
             this.walSize = walSize;
+            this.walReplayRecords = walReplayRecords;
+            this.walReplayMillis = walReplayMillis;
+            this.durability = durability;
         }
         
         public int getMemtableSize() {
@@ -359,6 +812,27 @@ public class EnhancedKVStore implements KVStore {
             return deletedKeysCount;
         }
         
+        /**
+         * Approximate heap footprint of the active and flushing memtables.
+         */
+        public long getMemtableBytes() {
+            return memtableBytes;
+        }
+        
+        /**
+         * Number of writes slowed down because a flush was falling behind.
+         */
+        public long getDelayedWrites() {
+            return delayedWrites;
+        }
+        
+        /**
+         * Number of times writes stopped until a flush completed.
+         */
+        public long getStalledWrites() {
+            return stalledWrites;
+        }
+        
         public int getSSTableCount() {
             return sstableCount;
         }
@@ -371,14 +845,80 @@ public class EnhancedKVStore implements KVStore {
             return totalSize;
         }
         
+        /**
+         * Number of SSTable lookups skipped because a Bloom filter ruled the key out.
+         */
+        public long getBloomFilterNegatives() {
+            return bloomFilterNegatives;
+        }
+        
+        /**
+         * Number of SSTable block reads served from the block cache.
+         */
+        public long getBlockCacheHits() {
+            return blockCacheHits;
+        }
+        
+        /**
+         * Number of SSTable block reads that went to disk.
+         */
+        public long getBlockCacheMisses() {
+            return blockCacheMisses;
+        }
+        
+        /**
+         * Number of blocks evicted from the block cache to make room.
+         */
+        public long getBlockCacheEvictions() {
+            return blockCacheEvictions;
+        }
+        
+        /**
+         * Number of SSTables in each level, level 0 first.
+         */
+        public int[] getLevelCounts() {
+            return levelCounts.clone();
+        }
+        
+        /**
+         * Number of background compactions queued or running.
+         */
+        public int getPendingCompactions() {
+            return pendingCompactions;
+        }
+        
         public long getWALSize() {
             return walSize;
         }
         
+        /**
+         * Number of operations recovered from the WAL when the store was opened.
+         */
+        public long getWALReplayRecords() {
+            return walReplayRecords;
+        }
+        
+        /**
+         * Time taken by the startup WAL replay in milliseconds.
+         */
+        public long getWALReplayMillis() {
+            return walReplayMillis;
+        }
+        
+        public DurabilityPolicy getDurability() {
+            return durability;
+        }
+        
         @Override
         public String toString() {
-            return String.format("StoreStats{memtable=%d, deleted=%d, sstables=%d, entries=%d, size=%d bytes, wal=%d bytes}",
-                               memtableSize, deletedKeysCount, sstableCount, totalEntries, totalSize, walSize);
+            return String.format("StoreStats{memtable=%d (%d bytes), deleted=%d, delayedWrites=%d, stalledWrites=%d, "
+                               + "sstables=%d, entries=%d, size=%d bytes, bloomNegatives=%d, "
+                               + "blockCache=%d hits/%d misses/%d evictions, levels=%s, pendingCompactions=%d, "
+                               + "wal=%d bytes, walReplay=%d records in %d ms, durability=%s}",
+                               memtableSize, memtableBytes, deletedKeysCount, delayedWrites, stalledWrites, sstableCount, totalEntries, totalSize,
+                               bloomFilterNegatives, blockCacheHits, blockCacheMisses, blockCacheEvictions,
+                               Arrays.toString(levelCounts), pendingCompactions, walSize,
+                               walReplayRecords, walReplayMillis, durability);
         }
     }
 }
@@ -0,0 +1,223 @@
+package com.kvstore.core;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Pure-Java compressor producing the LZ4 block format: a greedy single-pass
+ * matcher over a hash table of 4-byte sequences. It favours speed over ratio,
+ * which suits the write path.
+ */
+final class LZ4Codec {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 14;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+
+    // One hash table per thread, reused across calls without clearing
+    private static final ThreadLocal<HashTable> TABLES = ThreadLocal.withInitial(HashTable::new);
+
+    private LZ4Codec() {
+    }
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compress {@code src[srcOff, srcOff + srcLen)} into {@code dst} starting
+     * at {@code dstOff}, which must have {@link #maxCompressedLength} bytes free.
+     *
+     * @return the number of bytes written
+     */
+    static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int srcEnd = srcOff + srcLen;
+        int matchLimit = srcEnd - LAST_LITERALS;
+        int mfLimit = srcEnd - MF_LIMIT;
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+
+        if (srcLen > MF_LIMIT) {
+            HashTable hashTable = TABLES.get();
+            int[] table = hashTable.positions;
+            int start = hashTable.claim(srcLen);
+            int base = start - srcOff; // Entries are positions plus base
+
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int entry = table[hash];
+                int ref = entry - base;
+                table[hash] = ip + base;
+
+                if (entry < start || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+
+                // Extend the match backwards into pending literals, then forwards
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+
+        // The block always ends with a literal-only sequence
+        int literalLength = srcEnd - anchor;
+        int tokenPos = op++;
+        op = writeLength(dst, op, literalLength);
+        System.arraycopy(src, anchor, dst, op, literalLength);
+        op += literalLength;
+        dst[tokenPos] = (byte) (Math.min(literalLength, 15) << 4);
+
+        return op - dstOff;
+    }
+
+    /**
+     * Decompress an LZ4 block into exactly {@code dstLen} bytes.
+     */
+    static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+            throws IOException {
+        int ip = srcOff;
+        int srcEnd = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+
+        while (true) {
+            if (ip >= srcEnd) {
+                throw corrupt();
+            }
+            int token = src[ip++] & 0xff;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw corrupt();
+                    }
+                    b = src[ip++] & 0xff;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > srcEnd - ip || literalLength > dstEnd - op) {
+                throw corrupt();
+            }
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+
+            if (ip == srcEnd) {
+                break;
+            }
+
+            if (srcEnd - ip < 2) {
+                throw corrupt();
+            }
+            int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+            ip += 2;
+            if (offset == 0 || offset > op - dstOff) {
+                throw corrupt();
+            }
+
+            int matchLength = token & 0x0f;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        throw corrupt();
+                    }
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op) {
+                throw corrupt();
+            }
+
+            // Byte-wise copy: the match may overlap the bytes it produces
+            int ref = op - offset;
+            for (int i = 0; i < matchLength; i++) {
+                dst[op++] = dst[ref++];
+            }
+        }
+
+        if (op != dstEnd) {
+            throw corrupt();
+        }
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset,
+                                     int matchLength, byte[] dst, int op) {
+        int tokenPos = op++;
+        op = writeLength(dst, op, literalLength);
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+
+        int extraMatch = matchLength - MIN_MATCH;
+        op = writeLength(dst, op, extraMatch);
+        dst[tokenPos] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(extraMatch, 15));
+        return op;
+    }
+
+    /**
+     * Write the overflow bytes of a length whose first 4 bits live in the token.
+     */
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length >= 15) {
+            int remaining = length - 15;
+            while (remaining >= 255) {
+                dst[op++] = (byte) 255;
+                remaining -= 255;
+            }
+            dst[op++] = (byte) remaining;
+        }
+        return op;
+    }
+
+    private static int readInt(byte[] buffer, int pos) {
+        return (buffer[pos] & 0xff) | ((buffer[pos + 1] & 0xff) << 8)
+                | ((buffer[pos + 2] & 0xff) << 16) | ((buffer[pos + 3] & 0xff) << 24);
+    }
+
+    private static IOException corrupt() {
+        return new IOException("Corrupt LZ4 block");
+    }
+
+    /**
+     * Match-finder hash table. Rather than clearing it for every call, each
+     * call stores positions offset by a base above every earlier call's
+     * entries, so anything below its base is stale and treated as empty.
+     */
+    private static final class HashTable {
+        final int[] positions = new int[1 << HASH_LOG];
+        private int next = 1; // Zero-filled slots are below every base
+
+        /**
+         * @return the base for a call compressing {@code length} bytes
+         */
+        int claim(int length) {
+            if (next > Integer.MAX_VALUE - length) {
+                Arrays.fill(positions, 0);
+                next = 1;
+            }
+            int start = next;
+            next += length;
+            return start;
+        }
+    }
+}
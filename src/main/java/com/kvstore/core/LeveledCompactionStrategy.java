@@ -0,0 +1,199 @@
+package com.kvstore.core;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Chooses compactions that keep SSTables in size-bounded levels.
+ *
+ * Level 0 holds freshly flushed tables, whose key ranges may overlap. Every
+ * deeper level holds tables with disjoint key ranges, so a point read
+ * touches at most one table per level. Once level 0 has
+ * {@link StoreOptions#getLevel0CompactionTrigger()} tables they are all
+ * merged into level 1. Level 1 may hold {@link StoreOptions#getLevelBaseSize()}
+ * bytes and each level after it {@link StoreOptions#getLevelSizeMultiplier()}
+ * times as many as the one before; a level over its limit pushes one table,
+ * chosen round-robin through the key space, into the next level, rewriting
+ * only the tables there that overlap it.
+ */
+final class LeveledCompactionStrategy implements CompactionStrategy {
+    static final int MAX_LEVELS = 7;
+
+    private final long targetFileSize;
+    private final int level0Trigger;
+    private final long levelBaseSize;
+    private final int levelSizeMultiplier;
+    private final String[] compactPointers = new String[MAX_LEVELS]; // Largest key last pushed down from each level
+
+    LeveledCompactionStrategy(StoreOptions options) {
+        this.targetFileSize = options.getSstableTargetSize();
+        this.level0Trigger = options.getLevel0CompactionTrigger();
+        this.levelBaseSize = options.getLevelBaseSize();
+        this.levelSizeMultiplier = options.getLevelSizeMultiplier();
+    }
+
+    @Override
+    public int getLevelCount() {
+        return MAX_LEVELS;
+    }
+
+    /**
+     * Choose the most urgent compaction whose tables are all idle: the level
+     * furthest over its limit.
+     */
+    @Override
+    public Compaction pick(List<List<SSTable>> levels, Set<SSTable> busy) {
+        // Score each level by how far over its limit it is, ignoring tables
+        // that a running compaction is already moving out
+        double[] scores = new double[MAX_LEVELS - 1];
+        scores[0] = (double) countIdle(levels.get(0), busy) / level0Trigger;
+        for (int level = 1; level < MAX_LEVELS - 1; level++) {
+            scores[level] = idleBytes(levels.get(level), busy) / maxBytes(level);
+        }
+
+        while (true) {
+            int level = 0;
+            for (int i = 1; i < scores.length; i++) {
+                if (scores[i] > scores[level]) {
+                    level = i;
+                }
+            }
+            if (scores[level] < 1) {
+                return null;
+            }
+            Compaction compaction = level == 0 ? pickLevel0(levels, busy) : pickLevel(levels, level, busy);
+            if (compaction != null) {
+                return compaction;
+            }
+            scores[level] = 0; // Everything it could take is busy
+        }
+    }
+
+    /**
+     * Merge all of level 0, which may overlap anywhere, with the level 1
+     * tables it overlaps. Only one such compaction runs at a time so that
+     * level 1 outputs never overlap each other.
+     */
+    private Compaction pickLevel0(List<List<SSTable>> levels, Set<SSTable> busy) {
+        List<SSTable> level0 = levels.get(0);
+        if (level0.isEmpty() || anyBusy(level0, busy)) {
+            return null;
+        }
+        String smallest = level0.get(0).getSmallestKey();
+        String largest = level0.get(0).getLargestKey();
+        for (SSTable sstable : level0) {
+            smallest = min(smallest, sstable.getSmallestKey());
+            largest = max(largest, sstable.getLargestKey());
+        }
+
+        List<SSTable> inputs = overlapping(levels.get(1), smallest, largest);
+        if (anyBusy(inputs, busy)) {
+            return null;
+        }
+        inputs.addAll(level0);
+        return new Compaction(0, 1, inputs, targetFileSize);
+    }
+
+    /**
+     * Push the next idle table after the level's compaction pointer into the
+     * level below, together with the tables there that it overlaps.
+     */
+    private Compaction pickLevel(List<List<SSTable>> levels, int level, Set<SSTable> busy) {
+        List<SSTable> tables = levels.get(level);
+        int start = 0;
+        if (compactPointers[level] != null) {
+            while (start < tables.size() && tables.get(start).getSmallestKey().compareTo(compactPointers[level]) <= 0) {
+                start++;
+            }
+        }
+
+        for (int i = 0; i < tables.size(); i++) {
+            SSTable sstable = tables.get((start + i) % tables.size());
+            if (busy.contains(sstable)) {
+                continue;
+            }
+            List<SSTable> inputs = overlapping(levels.get(level + 1), sstable.getSmallestKey(), sstable.getLargestKey());
+            if (anyBusy(inputs, busy)) {
+                continue;
+            }
+            inputs.add(sstable);
+            compactPointers[level] = sstable.getLargestKey();
+            return new Compaction(level, level + 1, inputs, targetFileSize);
+        }
+        return null;
+    }
+
+    /**
+     * Merge every table into the deepest occupied level, or level 1 if only
+     * level 0 has tables.
+     */
+    @Override
+    public Compaction pickAll(List<List<SSTable>> levels) {
+        List<SSTable> inputs = new ArrayList<>();
+        int outputLevel = 0;
+        for (int level = levels.size() - 1; level >= 0; level--) {
+            if (!levels.get(level).isEmpty() && outputLevel == 0) {
+                outputLevel = level;
+            }
+            inputs.addAll(levels.get(level)); // Deepest level holds the oldest data
+        }
+        if (inputs.isEmpty()) {
+            return null;
+        }
+        return new Compaction(outputLevel, Math.max(1, outputLevel), inputs, targetFileSize);
+    }
+
+    /**
+     * @return the most bytes level {@code level} may hold before it is compacted
+     */
+    double maxBytes(int level) {
+        return levelBaseSize * Math.pow(levelSizeMultiplier, level - 1);
+    }
+
+    private static List<SSTable> overlapping(List<SSTable> tables, String smallest, String largest) {
+        List<SSTable> result = new ArrayList<>();
+        for (SSTable sstable : tables) {
+            if (sstable.overlaps(smallest, largest)) {
+                result.add(sstable);
+            }
+        }
+        return result;
+    }
+
+    private static boolean anyBusy(List<SSTable> tables, Set<SSTable> busy) {
+        for (SSTable sstable : tables) {
+            if (busy.contains(sstable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countIdle(List<SSTable> tables, Set<SSTable> busy) {
+        int count = 0;
+        for (SSTable sstable : tables) {
+            if (!busy.contains(sstable)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static double idleBytes(List<SSTable> tables, Set<SSTable> busy) {
+        long bytes = 0;
+        for (SSTable sstable : tables) {
+            if (!busy.contains(sstable)) {
+                bytes += sstable.getDataSize();
+            }
+        }
+        return bytes;
+    }
+
+    private static String min(String a, String b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private static String max(String a, String b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+}
@@ -0,0 +1,193 @@
+package com.kvstore.core;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sorted in-memory table of recent writes. Deletes are stored as tombstones.
+ *
+ * Reads are lock-free. Mutations must be serialised by the caller, which is
+ * what keeps the counters consistent; once a memtable is frozen for flushing
+ * it is never modified again.
+ *
+ * A memtable is reference counted: the store holds one reference until the
+ * memtable has been flushed, and readers {@link #retain()} it for the duration
+ * of a lookup, so implementations that recycle their memory never free it
+ * under a reader.
+ */
+abstract class Memtable {
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @param offHeap whether keys and values are stored in off-heap arenas
+     */
+    static Memtable create(boolean offHeap) {
+        return offHeap ? new OffHeapMemtable() : new Heap();
+    }
+
+    /**
+     * Insert a value or tombstone, replacing any older entry for the key.
+     */
+    abstract void put(String key, VersionedValue value);
+
+    /**
+     * @return the entry for a key, which may be a tombstone, or null if absent
+     */
+    abstract VersionedValue get(String key);
+
+    /**
+     * @return a copy of the entries with keys in {@code [startKey, endKey)}, tombstones included
+     */
+    abstract List<Map.Entry<String, VersionedValue>> range(String startKey, String endKey);
+
+    /**
+     * @return a cursor over every entry in key order, tombstones included, to
+     *         write to an SSTable. Only valid while the memtable is retained.
+     */
+    abstract SortedCursor cursor();
+
+    /**
+     * @return the number of entries, tombstones included
+     */
+    int size() {
+        return getLiveCount() + getTombstoneCount();
+    }
+
+    abstract boolean isEmpty();
+
+    /**
+     * @return the estimated memory footprint in bytes
+     */
+    abstract long getApproximateBytes();
+
+    abstract int getLiveCount();
+
+    abstract int getTombstoneCount();
+
+    /**
+     * @return the highest sequence number applied, or 0 if empty
+     */
+    abstract long getMaxSequence();
+
+    /**
+     * Take a reference for reading.
+     *
+     * @return false if the memtable has already been released by its owner,
+     *         in which case its contents are in SSTables and it must not be read
+     */
+    boolean retain() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference; the last one frees the memtable's memory.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            free();
+        }
+    }
+
+    /**
+     * Return memory once no reader can reach it.
+     */
+    void free() {
+    }
+
+    /**
+     * Memtable over a ConcurrentSkipListMap of heap objects.
+     */
+    private static final class Heap extends Memtable {
+        // Rough heap cost of one entry beyond its characters: skip list node and
+        // index levels, the VersionedValue, and two String objects with their arrays
+        private static final int ENTRY_OVERHEAD = 128;
+
+        private final ConcurrentSkipListMap<String, VersionedValue> entries;
+        private volatile long approximateBytes;
+        private volatile int tombstoneCount;
+        private volatile long maxSequence;
+
+        Heap() {
+            this.entries = new ConcurrentSkipListMap<>();
+        }
+
+        @Override
+        void put(String key, VersionedValue value) {
+            VersionedValue previous = entries.put(key, value);
+            int tombstones = tombstoneCount;
+            long bytes = approximateBytes;
+            if (previous != null) {
+                bytes -= valueBytes(previous);
+                if (previous.isTombstone()) {
+                    tombstones--;
+                }
+            } else {
+                bytes += ENTRY_OVERHEAD + 2L * key.length();
+            }
+            if (value.isTombstone()) {
+                tombstones++;
+            }
+            approximateBytes = bytes + valueBytes(value);
+            tombstoneCount = tombstones;
+            maxSequence = Math.max(maxSequence, value.getSequence());
+        }
+
+        private static long valueBytes(VersionedValue value) {
+            return value.isTombstone() ? 0 : 2L * value.getValue().length();
+        }
+
+        @Override
+        VersionedValue get(String key) {
+            return entries.get(key);
+        }
+
+        @Override
+        List<Map.Entry<String, VersionedValue>> range(String startKey, String endKey) {
+            return new ArrayList<>(entries.subMap(startKey, endKey).entrySet());
+        }
+
+        @Override
+        SortedCursor cursor() {
+            return SortedCursor.of(entries.entrySet().iterator());
+        }
+
+        @Override
+        boolean isEmpty() {
+            return entries.isEmpty();
+        }
+
+        /**
+         * Characters are counted at two bytes each so non-Latin-1 text is not
+         * underestimated.
+         */
+        @Override
+        long getApproximateBytes() {
+            return approximateBytes;
+        }
+
+        @Override
+        int getLiveCount() {
+            return entries.size() - tombstoneCount;
+        }
+
+        @Override
+        int getTombstoneCount() {
+            return tombstoneCount;
+        }
+
+        @Override
+        long getMaxSequence() {
+            return maxSequence;
+        }
+    }
+}
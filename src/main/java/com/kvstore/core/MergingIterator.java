@@ -0,0 +1,107 @@
+package com.kvstore.core;
+import java.io.IOException;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges sorted cursors, such as SSTable scanners and memtable slices, into a
+ * single cursor in key order, yielding one entry per key: the one with the
+ * highest sequence number. Tombstones are yielded like any other entry.
+ *
+ * Inputs may instead all be in descending key order, for reverse scans.
+ *
+ * A heap of the inputs' current entries is kept, so each step costs a log of
+ * the number of inputs and only the current block of each SSTable is in memory.
+ */
+final class MergingIterator implements SortedCursor {
+    private final PriorityQueue<Source> heap;
+    private String key;
+    private VersionedValue value;
+
+    /**
+     * @param cursors inputs ordered newest first; among entries with equal
+     *                sequence numbers (legacy tables) the newest input wins
+     */
+    MergingIterator(List<? extends SortedCursor> cursors) throws IOException {
+        this(cursors, false);
+    }
+
+    /**
+     * @param cursors inputs ordered newest first
+     * @param reverse whether the inputs, and so the result, are in descending key order
+     */
+    MergingIterator(List<? extends SortedCursor> cursors, boolean reverse) throws IOException {
+        this.heap = new PriorityQueue<>(Math.max(1, cursors.size()));
+        for (int i = 0; i < cursors.size(); i++) {
+            Source source = new Source(cursors.get(i), i, reverse);
+            if (source.cursor.next()) {
+                heap.add(source);
+            }
+        }
+    }
+
+    /**
+     * Move to the next key.
+     *
+     * @return false once every input is exhausted
+     */
+    @Override
+    public boolean next() throws IOException {
+        Source top = heap.poll();
+        if (top == null) {
+            key = null;
+            value = null;
+            return false;
+        }
+        key = top.cursor.key();
+        value = top.cursor.value();
+        advance(top);
+
+        // Older versions of the same key sort right behind it
+        while (!heap.isEmpty() && heap.peek().cursor.key().equals(key)) {
+            Source duplicate = heap.poll();
+            if (duplicate.cursor.value().isNewerThan(value)) {
+                value = duplicate.cursor.value();
+            }
+            advance(duplicate);
+        }
+        return true;
+    }
+
+    private void advance(Source source) throws IOException {
+        if (source.cursor.next()) {
+            heap.add(source);
+        }
+    }
+
+    @Override
+    public String key() {
+        return key;
+    }
+
+    @Override
+    public VersionedValue value() {
+        return value;
+    }
+
+    private static final class Source implements Comparable<Source> {
+        private final SortedCursor cursor;
+        private final int rank;
+        private final boolean reverse;
+
+        Source(SortedCursor cursor, int rank, boolean reverse) {
+            this.cursor = cursor;
+            this.rank = rank;
+            this.reverse = reverse;
+        }
+
+        @Override
+        public int compareTo(Source other) {
+            int cmp = cursor.key().compareTo(other.cursor.key());
+            if (reverse) {
+                cmp = -cmp;
+            }
+            return cmp != 0 ? cmp : Integer.compare(rank, other.rank);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.kvstore.core;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memtable whose keys, values and skip list index all live in direct
+ * ByteBuffer arenas, so millions of entries cost the garbage collector nothing
+ * beyond a handful of chunk objects.
+ *
+ * Allocations are bump-pointer within 1 MB chunks and never freed
+ * individually: an overwrite links a new value record and abandons the old
+ * one. The whole arena is returned to a shared chunk pool once the memtable has
+ * been flushed and its last reader has released it.
+ *
+ * Layout, with pointers encoded as {@code (chunk << 32) | offset} and 0 as null:
+ * <pre>
+ *   node:  long valuePointer | int keyLength | int height | long next[height] | char key[]
+ *   value: long sequence | int length (-1 for a tombstone) | char value[]
+ * </pre>
+ * Keys are stored as UTF-16 chars so they compare exactly like
+ * {@link String#compareTo}. There is a single writer; a node is fully written
+ * before it is linked with a release store, and readers follow links with
+ * acquire loads, so lock-free readers always see complete nodes.
+ */
+final class OffHeapMemtable extends Memtable {
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int MAX_POOLED_CHUNKS = 128;
+    private static final int MAX_HEIGHT = 12;
+
+    private static final int NODE_VALUE = 0;
+    private static final int NODE_KEY_LENGTH = 8;
+    private static final int NODE_HEIGHT = 12;
+    private static final int NODE_NEXT = 16;
+    private static final int VALUE_SEQUENCE = 0;
+    private static final int VALUE_LENGTH = 8;
+    private static final int VALUE_CHARS = 12;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    // Chunks recycled between memtables so steady-state flushing allocates no direct memory
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledChunks = new AtomicInteger();
+
+    private volatile ByteBuffer[] chunks;
+    private volatile int maxHeight;
+    private volatile int entryCount;
+    private volatile int tombstoneCount;
+    private volatile long usedBytes;
+    private volatile long maxSequence;
+    private final long head;
+
+    // Writer-only allocation state
+    private int chunkCount;
+    private int position;
+
+    OffHeapMemtable() {
+        this.chunks = new ByteBuffer[16];
+        this.maxHeight = 1;
+        addChunk(takeChunk());
+        // Offset 0 of chunk 0 is never handed out, so no pointer is 0
+        this.position = 8;
+
+        this.head = allocate(NODE_NEXT + 8 * MAX_HEIGHT);
+        ByteBuffer chunk = chunk(head);
+        int offset = offset(head);
+        LONGS.set(chunk, offset + NODE_VALUE, 0L);
+        chunk.putInt(offset + NODE_KEY_LENGTH, 0);
+        chunk.putInt(offset + NODE_HEIGHT, MAX_HEIGHT);
+        for (int i = 0; i < MAX_HEIGHT; i++) {
+            LONGS.set(chunk, offset + NODE_NEXT + 8 * i, 0L);
+        }
+    }
+
+    @Override
+    void put(String key, VersionedValue value) {
+        long[] preds = new long[MAX_HEIGHT];
+        long node = findGreaterOrEqual(key, preds);
+        long valuePointer = writeValue(value);
+
+        if (node != 0 && compareKey(node, key) == 0) {
+            // Overwrite: publish the new value record; the old one stays in the arena
+            boolean wasTombstone = isTombstone(node);
+            LONGS.setRelease(chunk(node), offset(node) + NODE_VALUE, valuePointer);
+            if (wasTombstone != value.isTombstone()) {
+                tombstoneCount = tombstoneCount + (value.isTombstone() ? 1 : -1);
+            }
+        } else {
+            int height = randomHeight();
+            if (height > maxHeight) {
+                for (int i = maxHeight; i < height; i++) {
+                    preds[i] = head;
+                }
+                maxHeight = height;
+            }
+            long newNode = writeNode(key, height, valuePointer, preds);
+
+            // Link bottom-up so a node reachable at any level is reachable at level 0
+            for (int i = 0; i < height; i++) {
+                LONGS.setRelease(chunk(preds[i]), offset(preds[i]) + NODE_NEXT + 8 * i, newNode);
+            }
+            entryCount = entryCount + 1;
+            if (value.isTombstone()) {
+                tombstoneCount = tombstoneCount + 1;
+            }
+        }
+        maxSequence = Math.max(maxSequence, value.getSequence());
+    }
+
+    @Override
+    VersionedValue get(String key) {
+        long node = findGreaterOrEqual(key, null);
+        if (node != 0 && compareKey(node, key) == 0) {
+            return readValue(node);
+        }
+        return null;
+    }
+
+    @Override
+    List<Map.Entry<String, VersionedValue>> range(String startKey, String endKey) {
+        List<Map.Entry<String, VersionedValue>> result = new ArrayList<>();
+        for (long node = findGreaterOrEqual(startKey, null); node != 0 && compareKey(node, endKey) < 0;
+             node = next(node, 0)) {
+            result.add(new AbstractMap.SimpleImmutableEntry<>(readKey(node), readValue(node)));
+        }
+        return result;
+    }
+
+    @Override
+    SortedCursor cursor() {
+        // The bottom level links every node in key order; nothing is copied
+        // to the heap beyond the entry being read
+        return new SortedCursor() {
+            private long node = head;
+
+            @Override
+            public boolean next() {
+                if (node != 0) {
+                    node = OffHeapMemtable.this.next(node, 0);
+                }
+                return node != 0;
+            }
+
+            @Override
+            public String key() {
+                return readKey(node);
+            }
+
+            @Override
+            public VersionedValue value() {
+                return readValue(node);
+            }
+        };
+    }
+
+    @Override
+    boolean isEmpty() {
+        return entryCount == 0;
+    }
+
+    /**
+     * Arena bytes handed out, including abandoned value records.
+     */
+    @Override
+    long getApproximateBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    int getLiveCount() {
+        return entryCount - tombstoneCount;
+    }
+
+    @Override
+    int getTombstoneCount() {
+        return tombstoneCount;
+    }
+
+    @Override
+    long getMaxSequence() {
+        return maxSequence;
+    }
+
+    @Override
+    void free() {
+        ByteBuffer[] arena = chunks;
+        for (int i = 0; i < chunkCount; i++) {
+            ByteBuffer chunk = arena[i];
+            arena[i] = null;
+            // Oversized chunks and any beyond the pool limit are left to the garbage collector
+            if (chunk.capacity() == CHUNK_SIZE) {
+                if (pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+                    pool.add(chunk);
+                } else {
+                    pooledChunks.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the first node with a key at or after {@code key}, recording the
+     * rightmost node before it on every level when {@code preds} is given.
+     */
+    private long findGreaterOrEqual(String key, long[] preds) {
+        long node = head;
+        int level = maxHeight - 1;
+        while (true) {
+            long next = next(node, level);
+            if (next != 0 && compareKey(next, key) < 0) {
+                node = next;
+            } else {
+                if (preds != null) {
+                    preds[level] = node;
+                }
+                if (level == 0) {
+                    return next;
+                }
+                level--;
+            }
+        }
+    }
+
+    private long next(long node, int level) {
+        return (long) LONGS.getAcquire(chunk(node), offset(node) + NODE_NEXT + 8 * level);
+    }
+
+    private int compareKey(long node, String key) {
+        ByteBuffer chunk = chunk(node);
+        int offset = offset(node);
+        int length = chunk.getInt(offset + NODE_KEY_LENGTH);
+        int keyStart = offset + NODE_NEXT + 8 * chunk.getInt(offset + NODE_HEIGHT);
+        int common = Math.min(length, key.length());
+        for (int i = 0; i < common; i++) {
+            int diff = chunk.getChar(keyStart + 2 * i) - key.charAt(i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - key.length();
+    }
+
+    private String readKey(long node) {
+        ByteBuffer chunk = chunk(node);
+        int offset = offset(node);
+        int length = chunk.getInt(offset + NODE_KEY_LENGTH);
+        return readChars(chunk, offset + NODE_NEXT + 8 * chunk.getInt(offset + NODE_HEIGHT), length);
+    }
+
+    /**
+     * @return whether the node's current value is a tombstone, read from the
+     *         length header without decoding the value
+     */
+    private boolean isTombstone(long node) {
+        long pointer = (long) LONGS.getAcquire(chunk(node), offset(node) + NODE_VALUE);
+        return chunk(pointer).getInt(offset(pointer) + VALUE_LENGTH) < 0;
+    }
+
+    private VersionedValue readValue(long node) {
+        long pointer = (long) LONGS.getAcquire(chunk(node), offset(node) + NODE_VALUE);
+        ByteBuffer chunk = chunk(pointer);
+        int offset = offset(pointer);
+        long sequence = chunk.getLong(offset + VALUE_SEQUENCE);
+        int length = chunk.getInt(offset + VALUE_LENGTH);
+        return new VersionedValue(sequence, length < 0 ? null : readChars(chunk, offset + VALUE_CHARS, length));
+    }
+
+    private static String readChars(ByteBuffer chunk, int offset, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = chunk.getChar(offset + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    private long writeValue(VersionedValue value) {
+        String text = value.getValue();
+        int length = text == null ? 0 : text.length();
+        long pointer = allocate(VALUE_CHARS + 2L * length);
+        ByteBuffer chunk = chunk(pointer);
+        int offset = offset(pointer);
+        chunk.putLong(offset + VALUE_SEQUENCE, value.getSequence());
+        chunk.putInt(offset + VALUE_LENGTH, text == null ? -1 : length);
+        writeChars(chunk, offset + VALUE_CHARS, text, length);
+        return pointer;
+    }
+
+    private long writeNode(String key, int height, long valuePointer, long[] preds) {
+        long pointer = allocate(NODE_NEXT + 8L * height + 2L * key.length());
+        ByteBuffer chunk = chunk(pointer);
+        int offset = offset(pointer);
+        LONGS.set(chunk, offset + NODE_VALUE, valuePointer);
+        chunk.putInt(offset + NODE_KEY_LENGTH, key.length());
+        chunk.putInt(offset + NODE_HEIGHT, height);
+        for (int i = 0; i < height; i++) {
+            LONGS.set(chunk, offset + NODE_NEXT + 8 * i, next(preds[i], i));
+        }
+        writeChars(chunk, offset + NODE_NEXT + 8 * height, key, key.length());
+        return pointer;
+    }
+
+    private static void writeChars(ByteBuffer chunk, int offset, String text, int length) {
+        for (int i = 0; i < length; i++) {
+            chunk.putChar(offset + 2 * i, text.charAt(i));
+        }
+    }
+
+    private static int randomHeight() {
+        int height = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (height < MAX_HEIGHT && random.nextInt(4) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Reserve {@code size} bytes, rounded up to keep every record 8-byte
+     * aligned for the atomic pointer accesses.
+     */
+    private long allocate(long size) {
+        long aligned = (size + 7) & ~7L;
+        if (aligned > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Memtable entry too large: " + size + " bytes");
+        }
+        ByteBuffer current = chunks[chunkCount - 1];
+        if (position + aligned > current.capacity()) {
+            // Oversized records get a chunk of their own
+            addChunk(aligned > CHUNK_SIZE ? alignedChunk((int) aligned) : takeChunk());
+            position = 0;
+        }
+        long pointer = ((long) (chunkCount - 1) << 32) | position;
+        position += (int) aligned;
+        usedBytes = usedBytes + aligned;
+        return pointer;
+    }
+
+    private void addChunk(ByteBuffer chunk) {
+        ByteBuffer[] arena = chunks;
+        if (chunkCount == arena.length) {
+            arena = Arrays.copyOf(arena, arena.length * 2);
+        }
+        arena[chunkCount++] = chunk;
+        // Publish the (possibly new) array before any pointer into the chunk
+        chunks = arena;
+    }
+
+    private ByteBuffer chunk(long pointer) {
+        return chunks[(int) (pointer >>> 32)];
+    }
+
+    private static int offset(long pointer) {
+        return (int) pointer;
+    }
+
+    private static ByteBuffer takeChunk() {
+        ByteBuffer chunk = pool.poll();
+        if (chunk != null) {
+            pooledChunks.decrementAndGet();
+            return chunk;
+        }
+        return alignedChunk(CHUNK_SIZE);
+    }
+
+    private static ByteBuffer alignedChunk(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size + 8).alignedSlice(8);
+        buffer.limit(size);
+        return buffer.slice();
+    }
+}
@@ -5,41 +5,98 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
-
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Append-only store: every put appends a {@code int keyLength | key | int valueLength | value}
+ * record to {@code kvstore.dat}, and an in-memory index maps each key to its
+ * latest record. A delete appends a tombstone record, with a value length of
+ * -1, so the data file alone determines the contents of the store.
+ *
+ * The index is snapshotted in the background to {@code kvstore.index}: a
+ * binary, checksummed copy that records how much of the data file it covers.
+ * Opening the store loads the snapshot and replays only the records appended
+ * after it; without a usable snapshot the index is rebuilt by one sequential
+ * scan of the data file. A crash therefore never loses a write that reached
+ * the data file, and a record torn by a crash is cut off the end.
+ *
+ * Reads take no lock. They look the key up in the concurrent index and read
+ * the record with positional reads on the shared data channel, so any number
+ * of readers proceed in parallel without a shared file pointer. Writers
+ * serialise on a write lock that readers never touch; a record is fully
+ * written before its index entry is published, so a reader never sees a
+ * position whose bytes are not there yet.
+ */
 public class PersistentKVStore implements KVStore {
     private static final Logger logger = Logger.getLogger(PersistentKVStore.class.getName());
 
     private static final String DATA_FILE = "kvstore.dat";
-    private static final String INDEX_FILE = "kvstore.idx";
+    private static final String INDEX_FILE = "kvstore.index";
+    private static final String LEGACY_INDEX_FILE = "kvstore.idx"; // Text index written on close by older versions
     private static final String LOCK_FILE = "kvstore.lock";
+    private static final int INDEX_MAGIC = 0x4B564958; // "KVIX"
+    private static final int INDEX_END = -1; // Key length that terminates the snapshot's entries
+    private static final int TOMBSTONE_LENGTH = -1;
+    private static final long ABSENT = -1; // Snapshot overlay marker for a key that had no entry
+    private static final long INDEX_SNAPSHOT_INTERVAL = 60000; // Snapshot the index every 60 seconds
 
     private final Path dataPath;
     private final Path indexPath;
+    private final Path legacyIndexPath;
     private final Path lockPath;
     private final Map<String, Long> keyIndex; // key -> file position
-    private final ReadWriteLock indexLock;
-    private RandomAccessFile dataFile;
+    private final ReentrantLock writeLock;
+    private final ReentrantLock snapshotLock;
+    private final DurabilityPolicy durability;
+    private final BackgroundSyncer syncer;
+    private final ScheduledExecutorService indexSnapshotter;
+    private FileChannel dataChannel;
+    private long writePosition; // End of the last complete record; guarded by writeLock
+    private long snapshotPosition; // Data covered by the index snapshot on disk; guarded by snapshotLock
+    private Map<String, Long> snapshotOverlay; // Pre-snapshot entries of keys changed since; guarded by writeLock
     private FileLock fileLock;
 
     public PersistentKVStore(String directory) throws IOException {
+        this(directory, DurabilityPolicy.syncPerWrite());
+    }
+
+    public PersistentKVStore(String directory, DurabilityPolicy durability) throws IOException {
         this.dataPath = Paths.get(directory, DATA_FILE);
         this.indexPath = Paths.get(directory, INDEX_FILE);
+        this.legacyIndexPath = Paths.get(directory, LEGACY_INDEX_FILE);
         this.lockPath = Paths.get(directory, LOCK_FILE);
         this.keyIndex = new ConcurrentHashMap<>();
-        this.indexLock = new ReentrantReadWriteLock();
+        this.writeLock = new ReentrantLock();
+        this.snapshotLock = new ReentrantLock();
+        this.durability = durability;
+        this.syncer = new BackgroundSyncer("kvstore-syncer", durability, () -> dataChannel.force(false));
 
         initializeStore();
+
+        this.indexSnapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kvstore-index-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        indexSnapshotter.scheduleWithFixedDelay(this::snapshotIndexQuietly, INDEX_SNAPSHOT_INTERVAL,
+                                                INDEX_SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
     }
     private void initializeStore() throws IOException {
         // Create directory if it doesn't exist
@@ -59,76 +116,278 @@ public class PersistentKVStore implements KVStore {
             Files.createFile(dataPath);
         }
 
-        // Open data file for random access
-        dataFile = new RandomAccessFile(dataPath.toFile(), "rw");
+        // Open data file for positional reads and appends
+        dataChannel = FileChannel.open(dataPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
 
-        // Load index from disk
+        // Load index from disk and catch it up with the data file
         loadIndex();
 
         logger.info("KV Store initialized successfully");
     }
 
     private void loadIndex() throws IOException {
-        if (!Files.exists(indexPath)) {
-            return;
+        long covered = 0;
+        boolean legacy = false;
+        if (Files.exists(indexPath)) {
+            try {
+                covered = readIndexSnapshot();
+            } catch (IOException e) {
+                logger.warning("Discarding index snapshot, rebuilding from data file: " + e.getMessage());
+                keyIndex.clear();
+                covered = 0;
+            }
+        } else if (Files.exists(legacyIndexPath)) {
+            covered = readLegacyIndex();
+            legacy = true;
+        }
+
+        if (covered > dataChannel.size()) {
+            // The data the snapshot describes was lost in a crash, so none of it can be trusted
+            logger.warning("Index snapshot covers " + covered + " bytes but the data file has "
+                    + dataChannel.size() + ", rebuilding from data file");
+            keyIndex.clear();
+            covered = 0;
+        }
+
+        long start = System.currentTimeMillis();
+        writePosition = replayData(covered);
+        snapshotPosition = legacy ? -1 : covered;
+        logger.info("Loaded " + keyIndex.size() + " keys from index, replayed " + (writePosition - covered)
+                + " bytes of data in " + (System.currentTimeMillis() - start) + " ms");
+
+        if (legacy) {
+            snapshotIndex();
+            Files.deleteIfExists(legacyIndexPath);
+        }
+    }
+
+    /**
+     * @return the length of the data file the snapshot covers
+     * @throws IOException if the snapshot is truncated or corrupt
+     */
+    private long readIndexSnapshot() throws IOException {
+        byte[] bytes = Files.readAllBytes(indexPath);
+        if (bytes.length < 20) {
+            throw new IOException("Truncated index snapshot: " + indexPath);
         }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - 4);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new IOException("Not an index snapshot: " + indexPath);
+            }
+            long covered = in.readLong();
+            int keyLength;
+            while ((keyLength = in.readInt()) != INDEX_END) {
+                if (keyLength < 0 || keyLength > in.available()) {
+                    throw new IOException("Corrupt index snapshot: " + indexPath);
+                }
+                byte[] keyBytes = new byte[keyLength];
+                in.readFully(keyBytes);
+                keyIndex.put(new String(keyBytes, StandardCharsets.UTF_8), in.readLong());
+            }
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new IOException("Index snapshot checksum mismatch: " + indexPath);
+            }
+            return covered;
+        }
+    }
 
-        try (BufferedReader reader = Files.newBufferedReader(indexPath)) {
+    /**
+     * Load a {@code key|offset} text index from an older version. Older
+     * versions wrote it on every close and recorded deletes only by leaving the
+     * key out, so it is authoritative for the whole data file: a record after
+     * the last indexed one belongs to a deleted key and must not be replayed.
+     *
+     * @return the length of the data file the index covers
+     */
+    private long readLegacyIndex() throws IOException {
+        long size = dataChannel.size();
+        int dropped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(legacyIndexPath)) {
             String line;
             while ((line = reader.readLine()) != null) {
                 String[] parts = line.split("\\|");
-                if (parts.length == 2) {
-                    keyIndex.put(parts[0], Long.parseLong(parts[1]));
+                if (parts.length != 2) {
+                    continue;
+                }
+                long position = Long.parseLong(parts[1]);
+                if (position < size) {
+                    keyIndex.put(parts[0], position);
+                } else {
+                    dropped++;
                 }
             }
         }
-        logger.info("Loaded " + keyIndex.size() + " keys from index");
+        if (dropped > 0) {
+            logger.warning("Dropped " + dropped + " legacy index entries past the end of the data file");
+        }
+        return size;
     }
 
-    private void saveIndex() throws IOException {
-        try (BufferedWriter writer = Files.newBufferedWriter(indexPath,
-                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-            for (Map.Entry<String, Long> entry : keyIndex.entrySet()) {
-                writer.write(entry.getKey() + "|" + entry.getValue());
-                writer.newLine();
+    /**
+     * Apply the records from {@code from} to the end of the data file to the
+     * index with one sequential read. A record cut short by a crash is
+     * truncated away, so new records follow the last complete one.
+     *
+     * @return the end of the last complete record
+     */
+    private long replayData(long from) throws IOException {
+        long size = dataChannel.size();
+        long position = from;
+        try (InputStream file = Files.newInputStream(dataPath)) {
+            skipFully(file, from);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, 64 * 1024));
+            while (size - position >= 8) {
+                int keyLength = in.readInt();
+                if (keyLength < 0 || size - position - 8 < keyLength) {
+                    break;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                in.readFully(keyBytes);
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+                int valueLength = in.readInt();
+                if (valueLength == TOMBSTONE_LENGTH) {
+                    keyIndex.remove(key);
+                    position += 8L + keyLength;
+                    continue;
+                }
+                if (valueLength < 0 || size - position - 8 - keyLength < valueLength) {
+                    break;
+                }
+                skipFully(in, valueLength);
+                keyIndex.put(key, position);
+                position += 8L + keyLength + valueLength;
             }
         }
+
+        if (position < size) {
+            logger.warning("Truncating " + (size - position) + " bytes of incomplete record at offset " + position);
+            dataChannel.truncate(position);
+            dataChannel.force(false);
+        }
+        return position;
     }
 
-    @Override
-    public boolean put(String key, String value) {
-        if (key == null || value == null) {
-            return false;
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                throw new EOFException("Data file ended while skipping");
+            }
+            bytes -= skipped;
         }
+    }
 
+    private void snapshotIndexQuietly() {
         try {
-            indexLock.writeLock().lock();
+            snapshotIndex();
+        } catch (IOException e) {
+            logger.warning("Error writing index snapshot: " + e.getMessage());
+        }
+    }
 
-            // Write to data file
-            long position = dataFile.length();
-            dataFile.seek(position);
+    /**
+     * Write the index to {@code kvstore.index} along with the length of the
+     * data file it covers. Writers are only held up while that length is
+     * read: the index is then copied without a lock, and each writer records
+     * the entry a key had before it changes it, so the copy can be corrected
+     * to match the length exactly. The data is forced before the snapshot is
+     * renamed into place, so a snapshot never covers data a crash could lose.
+     */
+    private void snapshotIndex() throws IOException {
+        snapshotLock.lock();
+        try {
+            long covered;
+            writeLock.lock();
+            try {
+                covered = writePosition;
+                if (covered == snapshotPosition) {
+                    return;
+                }
+                snapshotOverlay = new HashMap<>();
+            } finally {
+                writeLock.unlock();
+            }
 
-            // Write key length, key, value length, value
-            byte[] keyBytes = key.getBytes("UTF-8");
-            byte[] valueBytes = value.getBytes("UTF-8");
+            // Keys changed during the copy may show either entry; the overlay settles them
+            Map<String, Long> entries;
+            Map<String, Long> overlay;
+            try {
+                entries = new HashMap<>(keyIndex);
+            } finally {
+                writeLock.lock();
+                try {
+                    overlay = snapshotOverlay;
+                    snapshotOverlay = null;
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            for (Map.Entry<String, Long> entry : overlay.entrySet()) {
+                if (entry.getValue() == ABSENT) {
+                    entries.remove(entry.getKey());
+                } else {
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+            dataChannel.force(false);
+
+            Path tempPath = indexPath.resolveSibling(INDEX_FILE + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(tempPath.toFile())) {
+                CRC32C crc = new CRC32C();
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file), crc));
+                out.writeInt(INDEX_MAGIC);
+                out.writeLong(covered);
+                for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                    byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(keyBytes.length);
+                    out.write(keyBytes);
+                    out.writeLong(entry.getValue());
+                }
+                out.writeInt(INDEX_END);
+                out.flush();
 
-            dataFile.writeInt(keyBytes.length);
-            dataFile.write(keyBytes);
-            dataFile.writeInt(valueBytes.length);
-            dataFile.write(valueBytes);
+                DataOutputStream checksumOut = new DataOutputStream(file);
+                checksumOut.writeInt((int) crc.getValue());
+                checksumOut.flush();
+                file.getFD().sync();
+            }
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            snapshotPosition = covered;
+            logger.fine("Saved index snapshot with " + entries.size() + " keys covering " + covered + " bytes");
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
 
-            // Update index
+    @Override
+    public boolean put(String key, String value) {
+        if (key == null || value == null) {
+            return false;
+        }
+
+        writeLock.lock();
+        try {
+            long position = writePosition;
+            ByteBuffer record = encodeRecord(key, value);
+            int length = record.remaining();
+            writeFully(record, position);
+            writePosition = position + length;
+
+            // Publish only once the record is on the channel
+            rememberForSnapshot(key);
             keyIndex.put(key, position);
 
-            // Force write to disk
-            dataFile.getFD().sync();
+            // Force write to disk as the durability policy requires
+            syncer.afterWrite(length);
 
             return true;
         } catch (IOException e) {
             logger.severe("Error writing key-value pair: " + e.getMessage());
             return false;
         } finally {
-            indexLock.writeLock().unlock();
+            writeLock.unlock();
         }
     }
 
@@ -138,37 +397,16 @@ public class PersistentKVStore implements KVStore {
             return Optional.empty();
         }
 
-        try {
-            indexLock.readLock().lock();
-
-            Long position = keyIndex.get(key);
-            if (position == null) {
-                return Optional.empty();
-            }
-
-            if (dataFile == null) {
-                logger.severe("Data file is null for key: " + key);
-                return Optional.empty();
-            }
-
-            dataFile.seek(position);
-
-            // Read key length and key
-            int keyLength = dataFile.readInt();
-            byte[] keyBytes = new byte[keyLength];
-            dataFile.readFully(keyBytes);
-
-            // Read value length and value
-            int valueLength = dataFile.readInt();
-            byte[] valueBytes = new byte[valueLength];
-            dataFile.readFully(valueBytes);
+        Long position = keyIndex.get(key);
+        if (position == null) {
+            return Optional.empty();
+        }
 
-            return Optional.of(new String(valueBytes, "UTF-8"));
+        try {
+            return Optional.of(readValue(position));
         } catch (IOException e) {
             logger.severe("Error reading key-value pair for key '" + key + "': " + e.getMessage());
             return Optional.empty();
-        } finally {
-            indexLock.readLock().unlock();
         }
     }
 
@@ -176,34 +414,15 @@ public class PersistentKVStore implements KVStore {
     public Map<String, String> readKeyRange(String startKey, String endKey) {
         Map<String, String> result = new HashMap<>();
 
-        try {
-            indexLock.readLock().lock();
-
-            for (Map.Entry<String, Long> entry : keyIndex.entrySet()) {
-                String key = entry.getKey();
-                if (key.compareTo(startKey) >= 0 && key.compareTo(endKey) < 0) {
-                    Long position = entry.getValue();
-                    try {
-                        dataFile.seek(position);
-
-                        // Read key length and key
-                        int keyLength = dataFile.readInt();
-                        byte[] keyBytes = new byte[keyLength];
-                        dataFile.readFully(keyBytes);
-
-                        // Read value length and value
-                        int valueLength = dataFile.readInt();
-                        byte[] valueBytes = new byte[valueLength];
-                        dataFile.readFully(valueBytes);
-
-                        result.put(key, new String(valueBytes, "UTF-8"));
-                    } catch (IOException e) {
-                        logger.severe("Error reading key-value pair in range: " + e.getMessage());
-                    }
+        for (Map.Entry<String, Long> entry : keyIndex.entrySet()) {
+            String key = entry.getKey();
+            if (key.compareTo(startKey) >= 0 && key.compareTo(endKey) < 0) {
+                try {
+                    result.put(key, readValue(entry.getValue()));
+                } catch (IOException e) {
+                    logger.severe("Error reading key-value pair in range: " + e.getMessage());
                 }
             }
-        } finally {
-            indexLock.readLock().unlock();
         }
 
         return result;
@@ -214,48 +433,48 @@ public class PersistentKVStore implements KVStore {
         if (keys == null || values == null || keys.size() != values.size()) {
             return false;
         }
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.get(i) == null || values.get(i) == null) {
+                return false;
+            }
+        }
 
-        try {
-            indexLock.writeLock().lock();
+        // Encode the whole batch up front so it is appended with one write
+        List<ByteBuffer> records = new ArrayList<>(keys.size());
+        int batchLength = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            ByteBuffer record = encodeRecord(keys.get(i), values.get(i));
+            records.add(record);
+            batchLength += record.remaining();
+        }
+        ByteBuffer batch = ByteBuffer.allocate(batchLength);
+        for (ByteBuffer record : records) {
+            batch.put(record.duplicate());
+        }
+        batch.flip();
 
-            // Start transaction
-            long startPosition = dataFile.length();
+        writeLock.lock();
+        try {
+            long startPosition = writePosition;
+            writeFully(batch, startPosition);
+            writePosition = startPosition + batchLength;
 
+            long position = startPosition;
             for (int i = 0; i < keys.size(); i++) {
-                String key = keys.get(i);
-                String value = values.get(i);
-
-                if (key == null || value == null) {
-                    // Rollback by truncating file
-                    dataFile.setLength(startPosition);
-                    return false;
-                }
-
-                // Write to data file
-                long position = dataFile.length();
-                dataFile.seek(position);
-
-                byte[] keyBytes = key.getBytes("UTF-8");
-                byte[] valueBytes = value.getBytes("UTF-8");
-
-                dataFile.writeInt(keyBytes.length);
-                dataFile.write(keyBytes);
-                dataFile.writeInt(valueBytes.length);
-                dataFile.write(valueBytes);
-
-                // Update index
-                keyIndex.put(key, position);
+                rememberForSnapshot(keys.get(i));
+                keyIndex.put(keys.get(i), position);
+                position += records.get(i).remaining();
             }
 
-            // Force write to disk
-            dataFile.getFD().sync();
+            // Force write to disk as the durability policy requires
+            syncer.afterWrite(batchLength);
 
             return true;
         } catch (IOException e) {
             logger.severe("Error in batch put: " + e.getMessage());
             return false;
         } finally {
-            indexLock.writeLock().unlock();
+            writeLock.unlock();
         }
     }
 
@@ -265,25 +484,104 @@ public class PersistentKVStore implements KVStore {
             return false;
         }
 
+        writeLock.lock();
         try {
-            indexLock.writeLock().lock();
-
-            if (keyIndex.remove(key) != null) {
-                return true;
+            if (!keyIndex.containsKey(key)) {
+                return false;
             }
 
+            // Record the delete so that replaying the data file doesn't resurrect the key
+            long position = writePosition;
+            ByteBuffer record = encodeRecord(key, null);
+            int length = record.remaining();
+            writeFully(record, position);
+            writePosition = position + length;
+            rememberForSnapshot(key);
+            keyIndex.remove(key);
+
+            syncer.afterWrite(length);
+
+            return true;
+        } catch (IOException e) {
+            logger.severe("Error deleting key '" + key + "': " + e.getMessage());
             return false;
         } finally {
-            indexLock.writeLock().unlock();
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Called under the write lock before a key's entry changes, so that a
+     * snapshot in progress can restore the entry it had when the snapshot began.
+     */
+    private void rememberForSnapshot(String key) {
+        if (snapshotOverlay != null) {
+            snapshotOverlay.putIfAbsent(key, keyIndex.getOrDefault(key, ABSENT));
         }
     }
 
+    /**
+     * @param value the value, or null for a tombstone
+     */
+    private static ByteBuffer encodeRecord(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ByteBuffer record = ByteBuffer.allocate(8 + keyBytes.length + valueBytes.length);
+        record.putInt(keyBytes.length).put(keyBytes);
+        record.putInt(value != null ? valueBytes.length : TOMBSTONE_LENGTH).put(valueBytes);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Read the value of the record at {@code position}. Only positional reads
+     * are used, so this is safe from any number of threads at once.
+     */
+    private String readValue(long position) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, position);
+        int keyLength = length.getInt(0);
+
+        length.clear();
+        long valuePosition = position + 4 + keyLength;
+        readFully(length, valuePosition);
+        int valueLength = length.getInt(0);
+
+        ByteBuffer value = ByteBuffer.allocate(valueLength);
+        readFully(value, valuePosition + 4);
+        return new String(value.array(), StandardCharsets.UTF_8);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = dataChannel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Record at " + position + " runs past the end of the data file");
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += dataChannel.write(buffer, position);
+        }
+    }
+
+    public DurabilityPolicy getDurability() {
+        return durability;
+    }
+
     @Override
     public void close() {
         try {
-            if (dataFile != null) {
-                saveIndex();
-                dataFile.close();
+            indexSnapshotter.shutdown();
+            indexSnapshotter.awaitTermination(5, TimeUnit.SECONDS);
+            syncer.close();
+            if (dataChannel != null) {
+                snapshotIndex();
+                dataChannel.force(true);
+                dataChannel.close();
             }
             if (fileLock != null && fileLock.isValid()) {
                 fileLock.release();
@@ -291,6 +589,9 @@ public class PersistentKVStore implements KVStore {
             logger.info("KV Store closed successfully");
         } catch (IOException e) {
             logger.severe("Error closing KV Store: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.severe("Interrupted while closing KV Store");
         }
     }
 }
@@ -1,233 +1,813 @@
 package com.kvstore.core;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+/**
+ * Immutable sorted table of key/value entries on disk.
+ *
+ * Entries are grouped into blocks of about {@value #BLOCK_SIZE} bytes, each
+ * framed as {@code int length | int crc32c | entries}. The index file holds
+ * only the first key, offset and length of every block, so an open table keeps
+ * one key per block in memory and a lookup is a binary search plus one block
+ * read. Every entry carries the sequence number of the mutation that wrote it,
+ * and the index header records the table's sequence range. A delete is kept as
+ * a tombstone entry, with a value length of -1, so that it keeps hiding older
+ * values of the key in other tables until compaction can drop it. A Bloom filter over
+ * the keys is stored in a {@code .bf} file beside the table and lets lookups of
+ * absent keys skip the table without any I/O. An open table keeps a single
+ * read-only channel on its data file that concurrent readers share through
+ * positional reads, so a lookup costs no open or close. Verified blocks may be
+ * kept in a {@link BlockCache} shared with the other tables of the store.
+ *
+ * Tables in the older per-key index formats are still readable: each entry is
+ * treated as an unchecksummed block of its own, and entries written before
+ * sequence numbers existed report sequence 0. Both are rewritten in the
+ * current format when they are next compacted.
+ */
 public class SSTable {
     private static final Logger logger = Logger.getLogger(SSTable.class.getName());
     private static final String SST_FILE_PREFIX = "sst_";
     private static final String SST_INDEX_SUFFIX = ".idx";
     private static final String SST_DATA_SUFFIX = ".dat";
-    
+    private static final String SST_FILTER_SUFFIX = ".bf";
+    static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;
+    private static final int INDEX_MAGIC = 0x4B565349; // "KVSI"
+    private static final int LEGACY_VERSION = 1;
+    private static final int KEY_INDEX_VERSION = 2;
+    private static final int VERSION = 3;
+    static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int TOMBSTONE_LENGTH = -1;
+
     private final Path dataPath;
     private final Path indexPath;
-    private final ReentrantReadWriteLock lock;
+    private final Path filterPath;
+    private final BloomFilter filter; // Null if the table has none
+    private final FileChannel dataChannel; // Shared by all readers, positional reads only
+    private final BlockCache blockCache; // Null if caching is disabled
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile boolean obsolete;
     private final long fileId;
     private final long creationTime;
     private final int entryCount;
     private final long dataSize;
+    private final int version;
+    private final long minSequence;
+    private final long maxSequence;
+
+    // Sparse index: the first key, file offset and framed length of each block
+    private final String[] blockKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final String largestKey;
 
-    private final Map<String, Long> keyIndex;
-    
-    private SSTable(Path dataPath, Path indexPath, long fileId, long creationTime, 
-                   int entryCount, long dataSize, Map<String, Long> keyIndex) {
+    private SSTable(Path dataPath, Path indexPath, Path filterPath, BloomFilter filter, BlockCache blockCache,
+                   long fileId, long creationTime, int entryCount, long dataSize, int version, long minSequence,
+                   long maxSequence, String[] blockKeys, long[] blockOffsets, int[] blockLengths,
+                   String largestKey) throws IOException {
         this.dataPath = dataPath;
         this.indexPath = indexPath;
+        this.filterPath = filterPath;
+        this.filter = filter;
+        this.blockCache = blockCache;
         this.fileId = fileId;
         this.creationTime = creationTime;
         this.entryCount = entryCount;
         this.dataSize = dataSize;
-        this.keyIndex = keyIndex;
-        this.lock = new ReentrantReadWriteLock();
+        this.version = version;
+        this.minSequence = minSequence;
+        this.maxSequence = maxSequence;
+        this.blockKeys = blockKeys;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.dataChannel = FileChannel.open(dataPath, StandardOpenOption.READ);
+        try {
+            this.largestKey = largestKey != null ? largestKey : readLargestKey();
+        } catch (IOException e) {
+            dataChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Find the last key by reading the final block. Legacy tables index every
+     * key, so theirs is already in memory.
+     */
+    private String readLargestKey() throws IOException {
+        if (version < VERSION) {
+            return blockKeys[blockKeys.length - 1];
+        }
+        String last = null;
+        DataInputStream entries = new DataInputStream(new ByteArrayInputStream(loadBlock(blockKeys.length - 1)));
+        while (entries.available() > 0) {
+            last = readString(entries);
+            skipValue(entries);
+        }
+        return last;
+    }
+
+    public static SSTable create(String dataDirectory, long fileId, Map<String, VersionedValue> entries)
+            throws IOException {
+        return create(dataDirectory, fileId, entries, DEFAULT_BLOOM_BITS_PER_KEY, null);
     }
 
-    public static SSTable create(String dataDirectory, Map<String, String> entries) throws IOException {
+    /**
+     * Write a new SSTable.
+     *
+     * @param fileId identifier assigned by the caller; it names the files and
+     *               must not be reused within the directory
+     * @param bloomBitsPerKey Bloom filter size per key, or 0 for no filter
+     * @param blockCache cache for blocks read from the table, or null
+     */
+    static SSTable create(String dataDirectory, long fileId, Map<String, VersionedValue> entries,
+                          int bloomBitsPerKey, BlockCache blockCache) throws IOException {
         if (entries.isEmpty()) {
             throw new IllegalArgumentException("Cannot create SSTable with empty entries");
         }
-        
-        // Sort entries by key
-        TreeMap<String, String> sortedEntries = new TreeMap<>(entries);
-        
-        // Generate file ID and paths
-        long fileId = System.currentTimeMillis();
-        Path dataPath = Paths.get(dataDirectory, SST_FILE_PREFIX + fileId + SST_DATA_SUFFIX);
-        Path indexPath = Paths.get(dataDirectory, SST_FILE_PREFIX + fileId + SST_INDEX_SUFFIX);
-        
-        // Create directory if it doesn't exist
-        Files.createDirectories(Paths.get(dataDirectory));
-        
-        // Write data file
-        Map<String, Long> keyIndex = new HashMap<>();
-        long dataSize = 0;
-        
-        try (DataOutputStream dataOut = new DataOutputStream(
-                new BufferedOutputStream(Files.newOutputStream(dataPath)))) {
-            
-            for (Map.Entry<String, String> entry : sortedEntries.entrySet()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-                
-                // Record position for index
-                keyIndex.put(key, (long) dataOut.size());
-                
-                // Write entry: keyLength|key|valueLength|value
-                byte[] keyBytes = key.getBytes("UTF-8");
-                byte[] valueBytes = value.getBytes("UTF-8");
-                
-                dataOut.writeInt(keyBytes.length);
-                dataOut.write(keyBytes);
-                dataOut.writeInt(valueBytes.length);
-                dataOut.write(valueBytes);
-                
-                dataSize = dataOut.size();
+        return create(dataDirectory, fileId, SortedCursor.of(new TreeMap<>(entries).entrySet().iterator()),
+                      entries.size(), bloomBitsPerKey, blockCache);
+    }
+
+    /**
+     * Write a new SSTable from a cursor in ascending key order, such as a
+     * memtable's, without collecting the entries first.
+     *
+     * @param expectedKeys number of entries the cursor yields, used to size the Bloom filter
+     */
+    static SSTable create(String dataDirectory, long fileId, SortedCursor entries, int expectedKeys,
+                          int bloomBitsPerKey, BlockCache blockCache) throws IOException {
+        Writer writer = new Writer(dataDirectory, fileId, expectedKeys, bloomBitsPerKey, blockCache);
+        try {
+            while (entries.next()) {
+                writer.add(entries.key(), entries.value());
             }
+            return writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a table incrementally from entries supplied in key order, holding
+     * only the current block and the sparse index in memory.
+     */
+    static final class Writer {
+        private final long fileId;
+        private final BlockCache blockCache;
+        private final Path dataPath;
+        private final Path indexPath;
+        private final Path filterPath;
+        private final FileOutputStream file;
+        private final DataOutputStream dataOut;
+        private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+        private final DataOutputStream blockOut = new DataOutputStream(blockBytes);
+        private final BloomFilter filter;
+        private final List<String> blockKeys = new ArrayList<>();
+        private final List<Long> blockOffsets = new ArrayList<>();
+        private final List<Integer> blockLengths = new ArrayList<>();
+        private long dataSize;
+        private long minSequence = Long.MAX_VALUE;
+        private long maxSequence = Long.MIN_VALUE;
+        private int entryCount;
+        private String lastKey;
+
+        /**
+         * @param expectedKeys estimated number of entries, used to size the Bloom filter
+         * @param bloomBitsPerKey Bloom filter size per key, or 0 for no filter
+         * @param blockCache cache for blocks read from the finished table, or null
+         */
+        Writer(String dataDirectory, long fileId, int expectedKeys, int bloomBitsPerKey, BlockCache blockCache)
+                throws IOException {
+            this.fileId = fileId;
+            this.blockCache = blockCache;
+            this.dataPath = Paths.get(dataDirectory, SST_FILE_PREFIX + fileId + SST_DATA_SUFFIX);
+            this.indexPath = Paths.get(dataDirectory, SST_FILE_PREFIX + fileId + SST_INDEX_SUFFIX);
+            this.filterPath = Paths.get(dataDirectory, SST_FILE_PREFIX + fileId + SST_FILTER_SUFFIX);
+            this.filter = bloomBitsPerKey > 0 ? BloomFilter.create(Math.max(1, expectedKeys), bloomBitsPerKey) : null;
+
+            Files.createDirectories(Paths.get(dataDirectory));
+            this.file = new FileOutputStream(dataPath.toFile());
+            this.dataOut = new DataOutputStream(new BufferedOutputStream(file));
         }
-        
-        // Write index file
-        try (DataOutputStream indexOut = new DataOutputStream(
-                new BufferedOutputStream(Files.newOutputStream(indexPath)))) {
-            
-            indexOut.writeLong(fileId);
-            indexOut.writeLong(System.currentTimeMillis());
-            indexOut.writeInt(sortedEntries.size());
-            indexOut.writeLong(dataSize);
-            
-            for (Map.Entry<String, Long> indexEntry : keyIndex.entrySet()) {
-                String key = indexEntry.getKey();
-                Long position = indexEntry.getValue();
-                
-                byte[] keyBytes = key.getBytes("UTF-8");
-                indexOut.writeInt(keyBytes.length);
-                indexOut.write(keyBytes);
-                indexOut.writeLong(position);
+
+        /**
+         * Append an entry. Keys must be strictly increasing.
+         */
+        void add(String key, VersionedValue value) throws IOException {
+            if (lastKey != null && key.compareTo(lastKey) <= 0) {
+                throw new IllegalArgumentException("SSTable keys out of order: " + key + " after " + lastKey);
+            }
+            lastKey = key;
+            entryCount++;
+            minSequence = Math.min(minSequence, value.getSequence());
+            maxSequence = Math.max(maxSequence, value.getSequence());
+            if (filter != null) {
+                filter.add(key);
+            }
+            if (blockBytes.size() == 0) {
+                blockKeys.add(key);
+            }
+
+            // Write entry: keyLength|key|sequence|valueLength|value, valueLength -1 for a tombstone
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+            blockOut.writeInt(keyBytes.length);
+            blockOut.write(keyBytes);
+            blockOut.writeLong(value.getSequence());
+            if (value.isTombstone()) {
+                blockOut.writeInt(TOMBSTONE_LENGTH);
+            } else {
+                byte[] valueBytes = value.getValue().getBytes(StandardCharsets.UTF_8);
+                blockOut.writeInt(valueBytes.length);
+                blockOut.write(valueBytes);
+            }
+
+            if (blockBytes.size() >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            blockOffsets.add(dataSize);
+            blockLengths.add(writeBlock(dataOut, blockBytes));
+            dataSize += blockLengths.get(blockLengths.size() - 1);
+        }
+
+        /**
+         * @return the bytes written so far, including the unfinished block
+         */
+        long getDataSize() {
+            return dataSize + blockBytes.size();
+        }
+
+        int getEntryCount() {
+            return entryCount;
+        }
+
+        /**
+         * Complete the data file and write the filter and index, after which
+         * the table can be loaded.
+         */
+        SSTable finish() throws IOException {
+            if (entryCount == 0) {
+                throw new IllegalStateException("Cannot create SSTable with empty entries");
+            }
+            if (blockBytes.size() > 0) {
+                flushBlock();
+            }
+
+            // The WAL is truncated once this table is installed, so it must be on disk
+            dataOut.flush();
+            file.getFD().sync();
+            file.close();
+
+            // The filter is written before the index, which is what makes the table loadable
+            if (filter != null) {
+                filter.save(filterPath);
+            } else {
+                Files.deleteIfExists(filterPath);
+            }
+
+            // Write index file, followed by a checksum of its contents
+            long creationTime = System.currentTimeMillis();
+            try (FileOutputStream indexFile = new FileOutputStream(indexPath.toFile())) {
+                CRC32C crc = new CRC32C();
+                DataOutputStream indexOut = new DataOutputStream(
+                        new CheckedOutputStream(new BufferedOutputStream(indexFile), crc));
+
+                indexOut.writeInt(INDEX_MAGIC);
+                indexOut.writeInt(VERSION);
+                indexOut.writeLong(fileId);
+                indexOut.writeLong(creationTime);
+                indexOut.writeInt(entryCount);
+                indexOut.writeLong(dataSize);
+                indexOut.writeLong(minSequence);
+                indexOut.writeLong(maxSequence);
+                indexOut.writeInt(blockKeys.size());
+
+                for (int i = 0; i < blockKeys.size(); i++) {
+                    byte[] keyBytes = blockKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                    indexOut.writeInt(keyBytes.length);
+                    indexOut.write(keyBytes);
+                    indexOut.writeLong(blockOffsets.get(i));
+                    indexOut.writeInt(blockLengths.get(i));
+                }
+                indexOut.flush();
+
+                DataOutputStream checksumOut = new DataOutputStream(indexFile);
+                checksumOut.writeInt((int) crc.getValue());
+                checksumOut.flush();
+                indexFile.getFD().sync();
+            }
+
+            SSTable sstable = new SSTable(dataPath, indexPath, filterPath, filter, blockCache, fileId, creationTime,
+                                         entryCount, dataSize, VERSION, minSequence, maxSequence,
+                                         blockKeys.toArray(new String[0]),
+                                         blockOffsets.stream().mapToLong(Long::longValue).toArray(),
+                                         blockLengths.stream().mapToInt(Integer::intValue).toArray(), lastKey);
+
+            logger.info("Created SSTable: " + fileId + " with " + entryCount + " entries in "
+                        + blockKeys.size() + " blocks, sequences " + minSequence + "-" + maxSequence);
+            return sstable;
+        }
+
+        /**
+         * Discard a partly written table.
+         */
+        void abort() {
+            try {
+                file.close();
+                Files.deleteIfExists(indexPath);
+                Files.deleteIfExists(filterPath);
+                Files.deleteIfExists(dataPath);
+            } catch (IOException e) {
+                logger.warning("Failed to remove partial SSTable " + fileId + ": " + e.getMessage());
             }
         }
-        
-        SSTable sstable = new SSTable(dataPath, indexPath, fileId, System.currentTimeMillis(),
-                                     sortedEntries.size(), dataSize, keyIndex);
-        
-        logger.info("Created SSTable: " + fileId + " with " + sortedEntries.size() + " entries");
-        return sstable;
+    }
+
+    /**
+     * Frame and write one block, then reset the block buffer.
+     *
+     * @return the number of bytes written including the block header
+     */
+    private static int writeBlock(DataOutputStream dataOut, ByteArrayOutputStream blockBytes) throws IOException {
+        byte[] payload = blockBytes.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        dataOut.writeInt(payload.length);
+        dataOut.writeInt((int) crc.getValue());
+        dataOut.write(payload);
+        blockBytes.reset();
+        return BLOCK_HEADER_SIZE + payload.length;
     }
 
     public static SSTable load(String dataDirectory, long fileId) throws IOException {
+        return load(dataDirectory, fileId, null);
+    }
+
+    /**
+     * @param blockCache cache for blocks read from the table, or null
+     */
+    static SSTable load(String dataDirectory, long fileId, BlockCache blockCache) throws IOException {
         Path dataPath = Paths.get(dataDirectory, SST_FILE_PREFIX + fileId + SST_DATA_SUFFIX);
         Path indexPath = Paths.get(dataDirectory, SST_FILE_PREFIX + fileId + SST_INDEX_SUFFIX);
-        
+        Path filterPath = Paths.get(dataDirectory, SST_FILE_PREFIX + fileId + SST_FILTER_SUFFIX);
+
         if (!Files.exists(dataPath) || !Files.exists(indexPath)) {
             throw new IOException("SSTable files not found for fileId: " + fileId);
         }
-        
+
         // Read index file
-        Map<String, Long> keyIndex = new HashMap<>();
+        byte[] index = Files.readAllBytes(indexPath);
         long creationTime;
         int entryCount;
         long dataSize;
-        
-        try (DataInputStream indexIn = new DataInputStream(
-                new BufferedInputStream(Files.newInputStream(indexPath)))) {
-            
-            long indexFileId = indexIn.readLong();
+        int version;
+        long minSequence = 0;
+        long maxSequence = 0;
+        String[] blockKeys;
+        long[] blockOffsets;
+        int[] blockLengths;
+
+        try (DataInputStream indexIn = new DataInputStream(new ByteArrayInputStream(index))) {
+
+            // Legacy index files start directly with the file ID
+            long indexFileId;
+            int magic = indexIn.readInt();
+            if (magic == INDEX_MAGIC) {
+                version = indexIn.readInt();
+                if (version != VERSION && version != KEY_INDEX_VERSION) {
+                    throw new IOException("Unsupported SSTable version " + version);
+                }
+                indexFileId = indexIn.readLong();
+            } else {
+                version = LEGACY_VERSION;
+                indexFileId = ((long) magic << 32) | (indexIn.readInt() & 0xffffffffL);
+            }
             if (indexFileId != fileId) {
                 throw new IOException("File ID mismatch in index file");
             }
-            
+
             creationTime = indexIn.readLong();
             entryCount = indexIn.readInt();
             dataSize = indexIn.readLong();
-            
-            // Read key index
-            for (int i = 0; i < entryCount; i++) {
-                int keyLength = indexIn.readInt();
-                byte[] keyBytes = new byte[keyLength];
-                indexIn.readFully(keyBytes);
-                String key = new String(keyBytes, "UTF-8");
-                Long position = indexIn.readLong();
-                keyIndex.put(key, position);
+            if (version >= KEY_INDEX_VERSION) {
+                minSequence = indexIn.readLong();
+                maxSequence = indexIn.readLong();
+            }
+
+            if (version == VERSION) {
+                verifyIndexChecksum(index, fileId);
+                int blockCount = indexIn.readInt();
+                blockKeys = new String[blockCount];
+                blockOffsets = new long[blockCount];
+                blockLengths = new int[blockCount];
+                for (int i = 0; i < blockCount; i++) {
+                    blockKeys[i] = readString(indexIn);
+                    blockOffsets[i] = indexIn.readLong();
+                    blockLengths[i] = indexIn.readInt();
+                }
+            } else {
+                // One unchecksummed block per entry, sized by the next entry's offset
+                TreeMap<String, Long> keyIndex = new TreeMap<>();
+                for (int i = 0; i < entryCount; i++) {
+                    String key = readString(indexIn);
+                    keyIndex.put(key, indexIn.readLong());
+                }
+                blockKeys = keyIndex.keySet().toArray(new String[0]);
+                blockOffsets = keyIndex.values().stream().mapToLong(Long::longValue).toArray();
+                blockLengths = new int[blockOffsets.length];
+                for (int i = 0; i < blockOffsets.length; i++) {
+                    long end = i + 1 < blockOffsets.length ? blockOffsets[i + 1] : dataSize;
+                    blockLengths[i] = (int) (end - blockOffsets[i]);
+                }
             }
         }
-        
-        SSTable sstable = new SSTable(dataPath, indexPath, fileId, creationTime,
-                                     entryCount, dataSize, keyIndex);
-        
-        logger.info("Loaded SSTable: " + fileId + " with " + entryCount + " entries");
+
+        // A missing or damaged filter only costs lookups, so the table is still usable
+        BloomFilter filter = null;
+        if (Files.exists(filterPath)) {
+            try {
+                filter = BloomFilter.load(filterPath);
+            } catch (IOException e) {
+                logger.warning("Ignoring Bloom filter for SSTable " + fileId + ": " + e.getMessage());
+            }
+        }
+
+        SSTable sstable = new SSTable(dataPath, indexPath, filterPath, filter, blockCache, fileId, creationTime,
+                                     entryCount, dataSize, version, minSequence, maxSequence, blockKeys, blockOffsets, blockLengths,
+                                     null);
+
+        logger.info("Loaded SSTable: " + fileId + " with " + entryCount + " entries in " + blockKeys.length
+                    + " blocks" + (version < VERSION ? " (legacy format " + version + ")" : ""));
         return sstable;
     }
 
+    private static void verifyIndexChecksum(byte[] index, long fileId) throws IOException {
+        if (index.length < 4) {
+            throw new IOException("Truncated index file for SSTable " + fileId);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(index, 0, index.length - 4);
+        int expected = ((index[index.length - 4] & 0xff) << 24) | ((index[index.length - 3] & 0xff) << 16)
+                | ((index[index.length - 2] & 0xff) << 8) | (index[index.length - 1] & 0xff);
+        if ((int) crc.getValue() != expected) {
+            throw new IOException("Index checksum mismatch for SSTable " + fileId);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     public String get(String key) throws IOException {
-        lock.readLock().lock();
-        try {
-            Long position = keyIndex.get(key);
-            if (position == null) {
-                return null;
+        VersionedValue value = getVersioned(key);
+        return value != null ? value.getValue() : null;
+    }
+
+    /**
+     * @return the value and its sequence number, which is a tombstone if the
+     *         key was deleted, or null if the key is absent
+     */
+    public VersionedValue getVersioned(String key) throws IOException {
+        if (!mightContain(key)) {
+            return null;
+        }
+        int block = findBlock(key);
+        if (block < 0) {
+            return null;
+        }
+
+        DataInputStream entries = readBlock(block, true);
+        while (entries.available() > 0) {
+            int cmp = readString(entries).compareTo(key);
+            if (cmp == 0) {
+                return readValue(entries);
+            } else if (cmp > 0) {
+                break;
             }
-            
-            try (RandomAccessFile dataFile = new RandomAccessFile(dataPath.toFile(), "r")) {
-                dataFile.seek(position);
-                
-                // Read entry
-                int keyLength = dataFile.readInt();
-                byte[] keyBytes = new byte[keyLength];
-                dataFile.readFully(keyBytes);
-                
-                int valueLength = dataFile.readInt();
-                byte[] valueBytes = new byte[valueLength];
-                dataFile.readFully(valueBytes);
-                
-                return new String(valueBytes, "UTF-8");
+            skipValue(entries);
+        }
+        return null;
+    }
+
+    /**
+     * @return the index of the last block whose first key is at or before
+     *         {@code key}, or -1 if the key sorts before the whole table
+     */
+    private int findBlock(String key) {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blockKeys[mid].compareTo(key) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * @param fillCache whether a block read from disk is added to the cache;
+     *                  full-table scans pass false so they don't evict the hot set
+     * @return a stream over the block's entries
+     */
+    private DataInputStream readBlock(int block, boolean fillCache) throws IOException {
+        if (blockCache == null) {
+            return new DataInputStream(new ByteArrayInputStream(loadBlock(block)));
+        }
+        byte[] entries = blockCache.get(fileId, blockOffsets[block]);
+        if (entries == null) {
+            entries = loadBlock(block);
+            if (fillCache) {
+                blockCache.put(fileId, blockOffsets[block], entries);
             }
-            
-        } finally {
-            lock.readLock().unlock();
         }
+        return new DataInputStream(new ByteArrayInputStream(entries));
     }
 
+    /**
+     * Read a block from disk and verify its checksum.
+     *
+     * @return the block's entries without the framing header
+     */
+    private byte[] loadBlock(int block) throws IOException {
+        byte[] bytes = new byte[blockLengths[block]];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = blockOffsets[block];
+        // Positional reads leave the channel's position alone, so readers need no lock
+        while (buffer.hasRemaining()) {
+            int read = dataChannel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Truncated block " + block + " in SSTable " + fileId);
+            }
+        }
+        if (version < VERSION) {
+            return bytes;
+        }
+
+        int length = ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+        int expected = ((bytes[4] & 0xff) << 24) | ((bytes[5] & 0xff) << 16) | ((bytes[6] & 0xff) << 8) | (bytes[7] & 0xff);
+        if (length != bytes.length - BLOCK_HEADER_SIZE) {
+            throw new IOException("Corrupt block " + block + " in SSTable " + fileId + ": bad length");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, BLOCK_HEADER_SIZE, length);
+        if ((int) crc.getValue() != expected) {
+            throw new IOException("Corrupt block " + block + " in SSTable " + fileId + ": checksum mismatch");
+        }
+        return Arrays.copyOfRange(bytes, BLOCK_HEADER_SIZE, bytes.length);
+    }
+
+    /**
+     * Read the remainder of an entry after its key.
+     *
+     * @return the value, or a tombstone with a null value
+     */
+    private VersionedValue readValue(DataInputStream entries) throws IOException {
+        long sequence = version == LEGACY_VERSION ? 0 : entries.readLong();
+        int length = entries.readInt();
+        if (length == TOMBSTONE_LENGTH) {
+            return new VersionedValue(sequence, null);
+        }
+        byte[] bytes = new byte[length];
+        entries.readFully(bytes);
+        return new VersionedValue(sequence, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private void skipValue(DataInputStream entries) throws IOException {
+        if (version != LEGACY_VERSION) {
+            entries.skipBytes(8);
+        }
+        entries.skipBytes(Math.max(0, entries.readInt()));
+    }
+
+    /**
+     * @param endKey exclusive upper bound, or null for none
+     * @return the live values with keys in {@code [startKey, endKey)}; deleted keys are left out
+     */
     public Map<String, String> getRange(String startKey, String endKey) throws IOException {
-        lock.readLock().lock();
-        try {
-            Map<String, String> result = new TreeMap<>();
-            
-            // Find keys in range
-            SortedMap<String, Long> rangeIndex = keyIndex.entrySet().stream()
-                .filter(entry -> {
-                    String key = entry.getKey();
-                    return key.compareTo(startKey) >= 0 && key.compareTo(endKey) < 0;
-                })
-                .collect(TreeMap::new, (map, entry) -> map.put(entry.getKey(), entry.getValue()), TreeMap::putAll);
-            
-            // Read values
-            try (RandomAccessFile dataFile = new RandomAccessFile(dataPath.toFile(), "r")) {
-                for (Map.Entry<String, Long> entry : rangeIndex.entrySet()) {
-                    String key = entry.getKey();
-                    Long position = entry.getValue();
-                    
-                    dataFile.seek(position);
-                    
-                    // Read entry
-                    int keyLength = dataFile.readInt();
-                    byte[] keyBytes = new byte[keyLength];
-                    dataFile.readFully(keyBytes);
-                    
-                    int valueLength = dataFile.readInt();
-                    byte[] valueBytes = new byte[valueLength];
-                    dataFile.readFully(valueBytes);
-                    
-                    String value = new String(valueBytes, "UTF-8");
-                    result.put(key, value);
+        Map<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, VersionedValue> entry : getVersionedRange(startKey, endKey).entrySet()) {
+            if (!entry.getValue().isTombstone()) {
+                result.put(entry.getKey(), entry.getValue().getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return entries with keys in {@code [startKey, endKey)} along with their
+     *         sequence numbers, tombstones included
+     */
+    public Map<String, VersionedValue> getVersionedRange(String startKey, String endKey) throws IOException {
+        return getVersionedRange(startKey, endKey, true);
+    }
+
+    private Map<String, VersionedValue> getVersionedRange(String startKey, String endKey, boolean fillCache)
+            throws IOException {
+        Map<String, VersionedValue> result = new TreeMap<>();
+        Scanner scanner = new Scanner(startKey, endKey, fillCache);
+        while (scanner.next()) {
+            result.put(scanner.key(), scanner.value());
+        }
+        return result;
+    }
+
+    /**
+     * @param endKey exclusive upper bound, or null to scan to the end of the table
+     * @param fillCache whether blocks read from disk are added to the block cache
+     * @return a cursor over the entries with keys in {@code [startKey, endKey)}
+     */
+    Scanner scan(String startKey, String endKey, boolean fillCache) {
+        return new Scanner(startKey, endKey, fillCache);
+    }
+
+    /**
+     * @param endKey exclusive upper bound, or null to scan from the end of the table
+     * @return a cursor over the entries with keys in {@code [startKey, endKey)},
+     *         in descending key order
+     */
+    SortedCursor scanReverse(String startKey, String endKey, boolean fillCache) {
+        return new ReverseScanner(startKey, endKey, fillCache);
+    }
+    /**
+     * Cursor over a key range in key order. Only the current block is held in
+     * memory.
+     */
+    final class Scanner implements SortedCursor {
+        private final String startKey;
+        private final String endKey;
+        private final boolean fillCache;
+        private int block;
+        private DataInputStream entries;
+        private String key;
+        private VersionedValue value;
+
+        private Scanner(String startKey, String endKey, boolean fillCache) {
+            this.startKey = startKey;
+            this.endKey = endKey;
+            this.fillCache = fillCache;
+            // Start at the block that may hold startKey
+            this.block = Math.max(0, findBlock(startKey));
+        }
+
+        /**
+         * Move to the next entry.
+         *
+         * @return false once the range is exhausted
+         */
+        @Override
+        public boolean next() throws IOException {
+            while (true) {
+                if (entries == null || entries.available() == 0) {
+                    // Stop at the first block that begins at or after endKey
+                    if (block >= blockKeys.length || (endKey != null && blockKeys[block].compareTo(endKey) >= 0)) {
+                        return finish();
+                    }
+                    entries = readBlock(block++, fillCache);
+                    continue;
+                }
+                String next = readString(entries);
+                if (next.compareTo(startKey) < 0) {
+                    skipValue(entries);
+                } else if (endKey == null || next.compareTo(endKey) < 0) {
+                    key = next;
+                    value = readValue(entries);
+                    return true;
+                } else {
+                    return finish();
                 }
             }
-            
-            return result;
-            
-        } finally {
-            lock.readLock().unlock();
+        }
+
+        private boolean finish() {
+            block = blockKeys.length;
+            entries = null;
+            key = null;
+            value = null;
+            return false;
+        }
+
+        @Override
+        public String key() {
+            return key;
+        }
+
+        @Override
+        public VersionedValue value() {
+            return value;
+        }
+
+        SSTable getTable() {
+            return SSTable.this;
+        }
+    }
+
+    /**
+     * Cursor over a key range in descending key order. Entries within a block
+     * can only be decoded forwards, so the blocks are visited from last to
+     * first and each one's entries in range are buffered and replayed
+     * backwards; as with {@link Scanner}, one block is held in memory.
+     */
+    private final class ReverseScanner implements SortedCursor {
+        private final String startKey;
+        private final String endKey;
+        private final boolean fillCache;
+        private final List<Map.Entry<String, VersionedValue>> buffered = new ArrayList<>();
+        private int block;
+        private int position;
+        private String key;
+        private VersionedValue value;
+
+        private ReverseScanner(String startKey, String endKey, boolean fillCache) {
+            this.startKey = startKey;
+            this.endKey = endKey;
+            this.fillCache = fillCache;
+            // Start at the last block that may hold keys before endKey
+            this.block = endKey == null ? blockKeys.length - 1 : findBlock(endKey);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (position == 0) {
+                // The block holding startKey is the last one to visit
+                if (block < 0 || (block + 1 < blockKeys.length && blockKeys[block + 1].compareTo(startKey) <= 0)) {
+                    key = null;
+                    value = null;
+                    return false;
+                }
+                bufferBlock(block--);
+            }
+            Map.Entry<String, VersionedValue> entry = buffered.get(--position);
+            key = entry.getKey();
+            value = entry.getValue();
+            return true;
+        }
+
+        private void bufferBlock(int index) throws IOException {
+            buffered.clear();
+            DataInputStream entries = readBlock(index, fillCache);
+            while (entries.available() > 0) {
+                String next = readString(entries);
+                if (endKey != null && next.compareTo(endKey) >= 0) {
+                    break;
+                }
+                if (next.compareTo(startKey) < 0) {
+                    skipValue(entries);
+                } else {
+                    buffered.add(new AbstractMap.SimpleImmutableEntry<>(next, readValue(entries)));
+                }
+            }
+            position = buffered.size();
+        }
+
+        @Override
+        public String key() {
+            return key;
+        }
+
+        @Override
+        public VersionedValue value() {
+            return value;
         }
     }
 
     public Map<String, String> getAll() throws IOException {
-        return getRange("", "\uffff"); // Use unicode range to get all keys
+        return getRange("", null);
     }
 
+    public Map<String, VersionedValue> getAllVersioned() throws IOException {
+        return getVersionedRange("", null, false);
+    }
+
+    /**
+     * Check for a live value of a key. This reads the block that may contain it.
+     */
     public boolean containsKey(String key) {
-        lock.readLock().lock();
         try {
-            return keyIndex.containsKey(key);
-        } finally {
-            lock.readLock().unlock();
+            VersionedValue value = getVersioned(key);
+            return value != null && !value.isTombstone();
+        } catch (IOException e) {
+            logger.warning("Failed to read SSTable " + fileId + ": " + e.getMessage());
+            return false;
         }
     }
 
@@ -246,23 +826,96 @@ public class SSTable {
     public long getDataSize() {
         return dataSize;
     }
+
+    /**
+     * @return the number of entries in the in-memory sparse index
+     */
+    public int getBlockCount() {
+        return blockKeys.length;
+    }
+
+    /**
+     * @return the lowest sequence number stored in this table
+     */
+    public long getMinSequence() {
+        return minSequence;
+    }
+
+    /**
+     * @return the highest sequence number stored in this table; no entry in it
+     *         can be newer than this
+     */
+    public long getMaxSequence() {
+        return maxSequence;
+    }
+
+    /**
+     * @return the lowest key in this table
+     */
+    public String getSmallestKey() {
+        return blockKeys[0];
+    }
+
+    /**
+     * @return the highest key in this table
+     */
+    public String getLargestKey() {
+        return largestKey;
+    }
+
+    /**
+     * @param largest upper bound, or null for none
+     * @return whether any key in {@code [smallest, largest]} could be in this table
+     */
+    boolean overlaps(String smallest, String largest) {
+        return smallest.compareTo(largestKey) <= 0 && (largest == null || largest.compareTo(blockKeys[0]) >= 0);
+    }
+
+    /**
+     * @return whether this table predates the current block format
+     */
+    public boolean isLegacyFormat() {
+        return version < VERSION;
+    }
+
+    /**
+     * @return false if the key is definitely not in this table; always true
+     *         for tables without a Bloom filter
+     */
+    public boolean mightContain(String key) {
+        return filter == null || filter.mightContain(key);
+    }
+
+    /**
+     * @return whether this table has a usable Bloom filter
+     */
+    public boolean hasBloomFilter() {
+        return filter != null;
+    }
+
+    /**
+     * @return the keys with live values in the table; this reads every block
+     */
     public Set<String> getKeys() {
-        lock.readLock().lock();
         try {
-            return new HashSet<>(keyIndex.keySet());
-        } finally {
-            lock.readLock().unlock();
+            return new HashSet<>(getAll().keySet());
+        } catch (IOException e) {
+            logger.warning("Failed to read SSTable " + fileId + ": " + e.getMessage());
+            return new HashSet<>();
         }
     }
+    /**
+     * Close the table and remove its files.
+     */
     public void delete() throws IOException {
-        lock.writeLock().lock();
-        try {
-            Files.deleteIfExists(dataPath);
-            Files.deleteIfExists(indexPath);
-            logger.info("Deleted SSTable: " + fileId);
-        } finally {
-            lock.writeLock().unlock();
+        close();
+        if (blockCache != null) {
+            blockCache.invalidate(fileId);
         }
+        Files.deleteIfExists(dataPath);
+        Files.deleteIfExists(indexPath);
+        Files.deleteIfExists(filterPath);
+        logger.info("Deleted SSTable: " + fileId);
     }
     public Path getDataPath() {
         return dataPath;
@@ -270,10 +923,60 @@ public class SSTable {
     public Path getIndexPath() {
         return indexPath;
     }
-    
+
+    /**
+     * Take a reference for reading. A table starts with one reference held by
+     * whoever created or loaded it.
+     *
+     * @return false if the table has already been closed
+     */
+    boolean retain() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference; the last one closes the table, and deletes its files
+     * if it has been {@linkplain #markObsolete() replaced}.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            if (obsolete) {
+                try {
+                    delete();
+                } catch (IOException e) {
+                    logger.warning("Failed to delete obsolete SSTable " + fileId + ": " + e.getMessage());
+                }
+            } else {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Record that compaction has replaced this table, so its files are
+     * removed once the last reference is released.
+     */
+    void markObsolete() {
+        obsolete = true;
+    }
+
+    /**
+     * Release the data file handle. Reads after this fail with an IOException.
+     */
     public void close() {
-        // SSTable is immutable, so no resources to close
-        // This method is provided for consistency with other components
+        try {
+            dataChannel.close();
+        } catch (IOException e) {
+            logger.warning("Error closing SSTable " + fileId + ": " + e.getMessage());
+        }
         logger.fine("SSTable closed: " + fileId);
     }
 }
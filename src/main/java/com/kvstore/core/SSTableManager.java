@@ -1,275 +1,850 @@
 package com.kvstore.core;
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Tracks the store's SSTables and compacts them.
+ *
+ * Tables are arranged in levels. Flushes land in level 0, and a
+ * {@link CompactionStrategy} chosen by {@link StoreOptions#getCompactionStyle()}
+ * decides which tables to merge and which level receives the result. The
+ * manifest records each table's level. It is checksummed and replaced
+ * atomically, and is durable before a flush lets the WAL drop its segments or
+ * a compaction deletes its inputs, so a crash never loses track of a table.
+ *
+ * Readers work from an immutable, reference-counted snapshot of the table
+ * list and take no lock. Flushes and compactions build a new snapshot under
+ * {@code installLock} and publish it in one step; a table replaced by
+ * compaction is deleted once the last snapshot that contains it is released.
+ * Compactions run on a background pool, so flushes and reads never wait for
+ * them.
+ */
 public class SSTableManager {
     private static final Logger logger = Logger.getLogger(SSTableManager.class.getName());
     private static final String MANIFEST_FILE = "sst_manifest";
-    private static final int MAX_SSTABLES = 10; // Maximum number of SSTables before compaction
+    private static final int MANIFEST_LEVELS_MARKER = -1; // Older manifests start with the table count
+    private static final int MANIFEST_CHECKSUM_MARKER = -2; // Levels format followed by a CRC32C
     private static final long COMPACTION_THRESHOLD = 100 * 1024 * 1024; // 100MB
+    private static final int SHUTDOWN_CHECK_INTERVAL = 1024; // Merged entries between checks for close
     
     private final String dataDirectory;
-    private final ReentrantReadWriteLock lock;
-    private final List<SSTable> sstables;
-    private final Map<Long, SSTable> sstableMap;
+    private final ReentrantLock installLock; // Serialises changes to the table set and manifest
+    private final Condition compactionFinished;
+    private final Set<SSTable> compacting; // Tables claimed by a compaction, guarded by installLock
+    private final CompactionStrategy strategy; // Guarded by installLock
+    private final ExecutorService compactor;
+    private final AtomicInteger pendingCompactions = new AtomicInteger();
+    private final int bloomBitsPerKey;
+    private final BlockCache blockCache; // Null if disabled
+    private final AtomicLong bloomFilterNegatives = new AtomicLong();
+    private final AtomicLong nextFileId;
+    private volatile TableSet current;
+    private volatile boolean closed;
     
     public SSTableManager(String dataDirectory) throws IOException {
+        this(dataDirectory, new StoreOptions());
+    }
+
+    public SSTableManager(String dataDirectory, StoreOptions options) throws IOException {
         this.dataDirectory = dataDirectory;
-        this.lock = new ReentrantReadWriteLock();
-        this.sstables = new ArrayList<>();
-        this.sstableMap = new HashMap<>();
+        this.bloomBitsPerKey = options.getBloomBitsPerKey();
+        this.blockCache = options.getBlockCacheSize() > 0 ? new BlockCache(options.getBlockCacheSize()) : null;
+        this.installLock = new ReentrantLock();
+        this.compactionFinished = installLock.newCondition();
+        this.compacting = new HashSet<>();
+        this.strategy = CompactionStrategy.create(options);
+        this.nextFileId = new AtomicLong(1);
+        this.current = new TableSet(loadExistingSSTables());
         
-        loadExistingSSTables();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.compactor = Executors.newFixedThreadPool(options.getCompactionThreads(), r -> {
+            Thread thread = new Thread(r, "sstable-compactor-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        maybeScheduleCompaction();
     }
 
-    private void loadExistingSSTables() throws IOException {
+    /**
+     * Load the tables named in the manifest. Manifests written before levels
+     * existed put every table in level 0.
+     */
+    private List<List<SSTable>> loadExistingSSTables() throws IOException {
         Path manifestPath = Paths.get(dataDirectory, MANIFEST_FILE);
+        List<List<SSTable>> levels = emptyLevels();
         
         if (!Files.exists(manifestPath)) {
             logger.info("No SSTable manifest found, starting with empty state");
-            return;
+            return levels;
         }
         
-        try (DataInputStream manifestIn = new DataInputStream(
-                new BufferedInputStream(Files.newInputStream(manifestPath)))) {
+        byte[] bytes = Files.readAllBytes(manifestPath);
+        int loaded = 0;
+        try (DataInputStream manifestIn = new DataInputStream(new ByteArrayInputStream(bytes))) {
             
             int sstableCount = manifestIn.readInt();
+            boolean checksummed = sstableCount == MANIFEST_CHECKSUM_MARKER;
+            boolean hasLevels = checksummed || sstableCount == MANIFEST_LEVELS_MARKER;
+            if (checksummed) {
+                if (bytes.length < 12) {
+                    throw new IOException("Truncated SSTable manifest: " + manifestPath);
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(bytes, 0, bytes.length - 4);
+                if ((int) crc.getValue() != readInt(bytes, bytes.length - 4)) {
+                    throw new IOException("SSTable manifest checksum mismatch: " + manifestPath);
+                }
+            }
+            if (hasLevels) {
+                sstableCount = manifestIn.readInt();
+            }
             logger.info("Loading " + sstableCount + " existing SSTables");
             
             for (int i = 0; i < sstableCount; i++) {
                 long fileId = manifestIn.readLong();
+                int level = hasLevels ? manifestIn.readInt() : 0;
                 try {
-                    SSTable sstable = SSTable.load(dataDirectory, fileId);
-                    sstables.add(sstable);
-                    sstableMap.put(fileId, sstable);
+                    SSTable sstable = SSTable.load(dataDirectory, fileId, blockCache);
+                    levels.get(Math.min(level, levels.size() - 1)).add(sstable);
+                    loaded++;
+                    nextFileId.accumulateAndGet(fileId + 1, Math::max);
                 } catch (IOException e) {
                     logger.warning("Failed to load SSTable " + fileId + ": " + e.getMessage());
                 }
             }
         }
         
-        // Sort SSTables by creation time (oldest first)
-        sstables.sort(Comparator.comparingLong(SSTable::getCreationTime));
-        
-        logger.info("Loaded " + sstables.size() + " SSTables");
+        logger.info("Loaded " + loaded + " SSTables");
+        return levels;
+    }
+
+    private List<List<SSTable>> emptyLevels() {
+        List<List<SSTable>> levels = new ArrayList<>();
+        for (int i = 0; i < strategy.getLevelCount(); i++) {
+            levels.add(new ArrayList<>());
+        }
+        return levels;
+    }
+
+    /**
+     * Order SSTables oldest first by the newest sequence they hold. Legacy tables
+     * all report sequence 0 and keep their relative order by file ID, which was
+     * their creation time.
+     */
+    private static void sortSSTables(List<SSTable> sstables) {
+        sstables.sort(Comparator.comparingLong(SSTable::getMaxSequence).thenComparingLong(SSTable::getFileId));
     }
 
-    private void saveManifest() throws IOException {
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * Replace the manifest with one listing {@code tables}. It is written to a
+     * temporary file, synced and renamed over the old one, and the directory is
+     * synced so the rename, and the new tables' files, survive a crash.
+     */
+    private void saveManifest(TableSet tables) throws IOException {
         Path manifestPath = Paths.get(dataDirectory, MANIFEST_FILE);
+        Path tempPath = Paths.get(dataDirectory, MANIFEST_FILE + ".tmp");
         
-        try (DataOutputStream manifestOut = new DataOutputStream(
-                new BufferedOutputStream(Files.newOutputStream(manifestPath)))) {
+        try (FileOutputStream file = new FileOutputStream(tempPath.toFile())) {
+            CRC32C crc = new CRC32C();
+            DataOutputStream manifestOut = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(file), crc));
             
-            manifestOut.writeInt(sstables.size());
+            manifestOut.writeInt(MANIFEST_CHECKSUM_MARKER);
+            manifestOut.writeInt(tables.sstables.size());
             
-            for (SSTable sstable : sstables) {
-                manifestOut.writeLong(sstable.getFileId());
+            for (int level = 0; level < tables.levels.size(); level++) {
+                for (SSTable sstable : tables.levels.get(level)) {
+                    manifestOut.writeLong(sstable.getFileId());
+                    manifestOut.writeInt(level);
+                }
             }
+            manifestOut.flush();
+            
+            DataOutputStream checksumOut = new DataOutputStream(file);
+            checksumOut.writeInt((int) crc.getValue());
+            checksumOut.flush();
+            file.getFD().sync();
         }
+        Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(Paths.get(dataDirectory));
         
-        logger.fine("Saved SSTable manifest with " + sstables.size() + " SSTables");
+        logger.fine("Saved SSTable manifest with " + tables.sstables.size() + " SSTables");
+    }
+
+    /**
+     * Make the directory's entries durable. Some platforms cannot open a
+     * directory for syncing; there the rename is left to the file system.
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.fine("Could not sync directory " + directory + ": " + e.getMessage());
+        }
     }
 
-    public void createSSTable(Map<String, String> entries) throws IOException {
+    public void createSSTable(Map<String, VersionedValue> entries) throws IOException {
         if (entries.isEmpty()) {
             return;
         }
+        createSSTable(SortedCursor.of(new TreeMap<>(entries).entrySet().iterator()), entries.size());
+    }
+
+    /**
+     * Write entries streamed in ascending key order, such as a frozen
+     * memtable's, to a new level-0 table.
+     *
+     * @param expectedKeys number of entries the cursor yields
+     */
+    void createSSTable(SortedCursor entries, int expectedKeys) throws IOException {
+        if (expectedKeys == 0) {
+            return;
+        }
         
-        lock.writeLock().lock();
+        SSTable sstable = SSTable.create(dataDirectory, nextFileId.getAndIncrement(), entries, expectedKeys,
+                                         bloomBitsPerKey, blockCache);
+        installLock.lock();
         try {
-            SSTable sstable = SSTable.create(dataDirectory, entries);
-            sstables.add(sstable);
-            sstableMap.put(sstable.getFileId(), sstable);
-            
-            saveManifest();
-            
-            // Check if compaction is needed
-            if (sstables.size() > MAX_SSTABLES) {
-                compact();
-            }
+            List<List<SSTable>> levels = current.copyLevels();
+            levels.get(0).add(sstable);
+            install(levels, Collections.emptyList());
             
+        } catch (IOException e) {
+            sstable.delete();
+            throw e;
         } finally {
-            lock.writeLock().unlock();
+            installLock.unlock();
+        }
+        
+        maybeScheduleCompaction();
+    }
+
+    /**
+     * Publish a new table set and save it to the manifest. Must hold installLock.
+     *
+     * @param levels the complete new set of tables by level
+     * @param replaced tables no longer in the set; they are deleted once no
+     *                 reader can reach them
+     */
+    private void install(List<List<SSTable>> levels, List<SSTable> replaced) throws IOException {
+        TableSet tables = new TableSet(levels);
+        try {
+            saveManifest(tables);
+        } catch (IOException e) {
+            tables.release();
+            throw e;
+        }
+        
+        TableSet previous = current;
+        current = tables;
+        previous.release();
+        for (SSTable sstable : replaced) {
+            sstable.markObsolete();
+            sstable.release();
+        }
+    }
+
+    /**
+     * @return the current table set, retained; the caller must release it
+     */
+    private TableSet acquire() {
+        while (true) {
+            TableSet tables = current;
+            if (tables.retain()) {
+                return tables;
+            }
         }
     }
     
     public String get(String key) throws IOException {
-        lock.readLock().lock();
+        VersionedValue value = getVersioned(key);
+        return value != null ? value.getValue() : null;
+    }
+
+    /**
+     * Find the newest value of a key across all SSTables.
+     *
+     * @return the newest entry, which is a tombstone if the key was deleted,
+     *         or null if no table has the key
+     */
+    public VersionedValue getVersioned(String key) throws IOException {
+        TableSet tables = acquire();
         try {
-            // Search from newest to oldest SSTable (latest value wins)
+            // Search from newest to oldest; once a value is found, a table whose
+            // newest sequence is older cannot hold a newer one. Below level 0
+            // the key range check leaves at most one table per level.
+            List<SSTable> sstables = tables.sstables;
+            VersionedValue best = null;
             for (int i = sstables.size() - 1; i >= 0; i--) {
                 SSTable sstable = sstables.get(i);
-                String value = sstable.get(key);
-                if (value != null) {
-                    return value;
+                if (best != null && sstable.getMaxSequence() < best.getSequence()) {
+                    break;
+                }
+                if (!sstable.overlaps(key, key)) {
+                    continue;
+                }
+                if (!sstable.mightContain(key)) {
+                    bloomFilterNegatives.incrementAndGet();
+                    continue;
+                }
+                VersionedValue value = sstable.getVersioned(key);
+                if (value != null && value.isNewerThan(best)) {
+                    best = value;
                 }
             }
-            return null;
+            return best;
             
         } finally {
-            lock.readLock().unlock();
+            tables.release();
         }
     }
 
     public Map<String, String> getRange(String startKey, String endKey) throws IOException {
-        lock.readLock().lock();
-        try {
-            Map<String, String> result = new TreeMap<>();
-            
-            // Collect from all SSTables, newest values override older ones
-            for (SSTable sstable : sstables) {
-                Map<String, String> range = sstable.getRange(startKey, endKey);
-                result.putAll(range);
+        return values(getVersionedRange(startKey, endKey));
+    }
+
+    /**
+     * @return the newest entry for each key in {@code [startKey, endKey)}, tombstones included
+     */
+    public Map<String, VersionedValue> getVersionedRange(String startKey, String endKey) throws IOException {
+        return collect(scan(startKey, endKey, Collections.emptyList()));
+    }
+
+    public Map<String, String> getAll() throws IOException {
+        return values(getAllVersioned());
+    }
+
+    public Map<String, VersionedValue> getAllVersioned() throws IOException {
+        // A full scan would only evict the hot set from the block cache
+        return collect(scan("", null, Collections.emptyList(), false, false));
+    }
+
+    private static Map<String, VersionedValue> collect(RangeScan scan) throws IOException {
+        try (scan) {
+            Map<String, VersionedValue> result = new TreeMap<>();
+            while (scan.next()) {
+                result.put(scan.key(), scan.value());
             }
-            
             return result;
-            
-        } finally {
-            lock.readLock().unlock();
         }
     }
 
-    public Map<String, String> getAll() throws IOException {
-        lock.readLock().lock();
+    /**
+     * Open a merged cursor over {@code [startKey, endKey)}. It combines the
+     * {@code newer} sources, such as memtable slices, with every SSTable whose
+     * key range overlaps, each seeked straight to {@code startKey}, so a scan
+     * costs the number of entries it returns times a log of the number of
+     * sources. The SSTables stay readable until the cursor is closed, even if
+     * compaction replaces them meanwhile.
+     *
+     * @param endKey exclusive upper bound, or null for none
+     * @param newer sources holding entries newer than any SSTable, newest first
+     */
+    RangeScan scan(String startKey, String endKey, List<? extends SortedCursor> newer) throws IOException {
+        return scan(startKey, endKey, newer, true, false);
+    }
+
+    /**
+     * Like {@link #scan(String, String, List)}, but in descending key order
+     * when {@code reverse} is set, in which case the {@code newer} sources
+     * must be descending too.
+     */
+    RangeScan scan(String startKey, String endKey, List<? extends SortedCursor> newer, boolean reverse)
+            throws IOException {
+        return scan(startKey, endKey, newer, true, reverse);
+    }
+
+    /**
+     * @param fillCache whether blocks read from disk are added to the block cache
+     */
+    private RangeScan scan(String startKey, String endKey, List<? extends SortedCursor> newer, boolean fillCache,
+                           boolean reverse) throws IOException {
+        TableSet tables = acquire();
         try {
-            Map<String, String> result = new TreeMap<>();
-            
-            // Collect from all SSTables, newest values override older ones
-            for (SSTable sstable : sstables) {
-                Map<String, String> all = sstable.getAll();
-                result.putAll(all);
+            List<SortedCursor> cursors = new ArrayList<>(newer);
+            for (int i = tables.sstables.size() - 1; i >= 0; i--) {
+                SSTable sstable = tables.sstables.get(i);
+                if (sstable.overlaps(startKey, endKey)) {
+                    cursors.add(reverse
+                            ? sstable.scanReverse(startKey, endKey, fillCache)
+                            : sstable.scan(startKey, endKey, fillCache));
+                }
             }
+            return new RangeScan(new MergingIterator(cursors, reverse), tables);
             
-            return result;
-            
-        } finally {
-            lock.readLock().unlock();
+        } catch (IOException | RuntimeException e) {
+            tables.release();
+            throw e;
         }
     }
 
+    /**
+     * @return the live values; keys whose newest entry is a tombstone are left out
+     */
+    private static Map<String, String> values(Map<String, VersionedValue> entries) {
+        Map<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, VersionedValue> entry : entries.entrySet()) {
+            if (!entry.getValue().isTombstone()) {
+                result.put(entry.getKey(), entry.getValue().getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the highest sequence number persisted in any SSTable, or 0 if none
+     */
+    public long getMaxSequence() {
+        List<SSTable> sstables = current.sstables;
+        return sstables.isEmpty() ? 0 : Math.max(0, sstables.get(sstables.size() - 1).getMaxSequence());
+    }
+
+    /**
+     * Merge every table into a single level on the compaction pool and wait
+     * for it. Waits for running background compactions first so that all
+     * tables are included. No lock is held while the merge runs, so flushes
+     * and reads carry on meanwhile.
+     */
     public void compact() throws IOException {
-        lock.writeLock().lock();
+        Compaction compaction;
+        installLock.lock();
         try {
-            if (sstables.size() <= 1) {
+            while (!compacting.isEmpty() && !closed) {
+                compactionFinished.await();
+            }
+            if (closed || current.sstables.size() <= 1) {
                 return;
             }
+            compaction = strategy.pickAll(current.levels);
+            compacting.addAll(compaction.getInputs());
             
-            logger.info("Starting SSTable compaction. Current SSTables: " + sstables.size());
-            
-            // Get all data from all SSTables
-            Map<String, String> allData = getAll();
-            
-            // Delete old SSTables
-            for (SSTable sstable : sstables) {
-                sstable.delete();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for background compaction");
+        } finally {
+            installLock.unlock();
+        }
+        
+        logger.info("Starting SSTable compaction of " + compaction.getInputs().size() + " SSTables");
+        Future<?> done;
+        pendingCompactions.incrementAndGet();
+        try {
+            done = compactor.submit(() -> {
+                try {
+                    compact(compaction);
+                    return null;
+                } finally {
+                    pendingCompactions.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingCompactions.decrementAndGet();
+            unclaim(compaction.getInputs());
+            throw new IOException("SSTable manager is closed");
+        }
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for compaction");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
-            
-            // Clear lists
-            sstables.clear();
-            sstableMap.clear();
-            
-            // Create new compacted SSTable
-            if (!allData.isEmpty()) {
-                createSSTable(allData);
+            throw new IOException("Compaction failed", cause);
+        }
+        logger.info("SSTable compaction completed. Current SSTables: " + current.sstables.size());
+    }
+
+    /**
+     * Reduce the store to at most {@code targetCount} tables. Levels other
+     * than the deepest cannot simply be merged in groups without overlapping
+     * their neighbours, so this runs a full {@link #compact()} when needed.
+     */
+    public void merge(int targetCount) throws IOException {
+        if (current.sstables.size() > targetCount) {
+            compact();
+        }
+    }
+
+    /**
+     * Queue background compactions for every level the strategy says is
+     * over its limit, as long as their tables are not already claimed.
+     */
+    private void maybeScheduleCompaction() {
+        installLock.lock();
+        try {
+            while (!closed) {
+                Compaction compaction = strategy.pick(current.levels, compacting);
+                if (compaction == null) {
+                    return;
+                }
+                compacting.addAll(compaction.getInputs());
+                pendingCompactions.incrementAndGet();
+                try {
+                    compactor.execute(() -> compactInBackground(compaction));
+                } catch (RejectedExecutionException e) {
+                    pendingCompactions.decrementAndGet();
+                    unclaim(compaction.getInputs()); // Closing
+                    return;
+                }
             }
-            
-            logger.info("SSTable compaction completed");
-            
         } finally {
-            lock.writeLock().unlock();
+            installLock.unlock();
         }
     }
 
-    public void merge(int targetCount) throws IOException {
-        lock.writeLock().lock();
+    private void compactInBackground(Compaction compaction) {
         try {
-            if (sstables.size() <= targetCount) {
-                return;
+            logger.info("Starting background " + compaction);
+            compact(compaction);
+        } catch (IOException e) {
+            if (closed) {
+                logger.info("Background compaction abandoned at shutdown");
+            } else {
+                logger.severe("Background compaction failed: " + e.getMessage());
             }
-            
-            logger.info("Starting SSTable merge. Target: " + targetCount + ", Current: " + sstables.size());
-            
-            // Group SSTables for merging
-            int groupSize = (int) Math.ceil((double) sstables.size() / targetCount);
-            
-            for (int i = 0; i < sstables.size(); i += groupSize) {
-                int endIndex = Math.min(i + groupSize, sstables.size());
-                List<SSTable> group = sstables.subList(i, endIndex);
-                
-                // Merge group
-                Map<String, String> mergedData = new TreeMap<>();
-                for (SSTable sstable : group) {
-                    Map<String, String> data = sstable.getAll();
-                    mergedData.putAll(data);
-                }
-                
-                // Delete old SSTables in group
-                for (SSTable sstable : group) {
-                    sstable.delete();
+        }
+        // The new tables may have pushed the next level over its limit
+        maybeScheduleCompaction();
+        pendingCompactions.decrementAndGet();
+    }
+
+    private void unclaim(List<SSTable> sstables) {
+        installLock.lock();
+        try {
+            compacting.removeAll(sstables);
+            compactionFinished.signalAll();
+        } finally {
+            installLock.unlock();
+        }
+    }
+
+    /**
+     * Merge claimed tables into the compaction's output level and install the
+     * result. A trivial move relinks its table without rewriting it. The
+     * inputs are unclaimed whether or not this succeeds.
+     */
+    private void compact(Compaction compaction) throws IOException {
+        List<SSTable> inputs = compaction.getInputs();
+        boolean trivialMove = compaction.isTrivialMove();
+        try {
+            List<SSTable> outputs = trivialMove ? inputs : mergeSSTables(inputs, compaction.getMaxOutputSize());
+            installLock.lock();
+            try {
+                List<List<SSTable>> levels = current.copyLevels();
+                for (List<SSTable> level : levels) {
+                    level.removeAll(inputs);
                 }
+                levels.get(compaction.getOutputLevel()).addAll(outputs);
+                install(levels, trivialMove ? Collections.emptyList() : inputs);
                 
-                // Create new merged SSTable
-                if (!mergedData.isEmpty()) {
-                    SSTable mergedSSTable = SSTable.create(dataDirectory, mergedData);
-                    sstables.set(i, mergedSSTable);
-                    sstableMap.put(mergedSSTable.getFileId(), mergedSSTable);
+            } catch (IOException e) {
+                if (!trivialMove) {
+                    for (SSTable output : outputs) {
+                        output.delete();
+                    }
                 }
+                throw e;
+            } finally {
+                installLock.unlock();
             }
-            
-            // Remove extra entries
-            while (sstables.size() > targetCount) {
-                SSTable removed = sstables.remove(sstables.size() - 1);
-                sstableMap.remove(removed.getFileId());
-            }
-            
-            saveManifest();
-            
-            logger.info("SSTable merge completed. Current SSTables: " + sstables.size());
-            
         } finally {
-            lock.writeLock().unlock();
+            unclaim(inputs);
         }
     }
 
-    public SSTableStats getStats() {
-        lock.readLock().lock();
+    /**
+     * Write the newest version of every key in {@code inputs} to new tables
+     * with a streaming k-way merge. Only the current block of each input and
+     * of the output is held in memory, and a new output is started whenever
+     * one reaches {@code maxOutputSize}. Tombstones are dropped once no table
+     * outside the inputs could still hold an older value for their key.
+     *
+     * @param inputs tables in manager order, oldest first
+     * @return the new tables in key order; none if the inputs are empty
+     */
+    private List<SSTable> mergeSSTables(List<SSTable> inputs, long maxOutputSize) throws IOException {
+        List<SSTable.Scanner> scanners = new ArrayList<>();
+        long inputEntries = 0;
+        long inputSize = 0;
+        for (int i = inputs.size() - 1; i >= 0; i--) {
+            SSTable input = inputs.get(i);
+            // Unbounded, so keys at or above U+FFFF are carried over too
+            scanners.add(input.scan("", null, false));
+            inputEntries += input.getEntryCount();
+            inputSize += input.getDataSize();
+        }
+        // Size each output's Bloom filter for the entries a full output would hold
+        long averageEntrySize = Math.max(1, inputSize / Math.max(1, inputEntries));
+        int expectedKeys = (int) Math.min(Integer.MAX_VALUE, Math.min(inputEntries, maxOutputSize / averageEntrySize + 1));
+        List<SSTable> others = overlappingOthers(inputs);
+
+        MergingIterator iterator = new MergingIterator(scanners);
+        List<SSTable> outputs = new ArrayList<>();
+        SSTable.Writer writer = null;
+        long merged = 0;
+        long droppedTombstones = 0;
         try {
-            long totalSize = 0;
-            int totalEntries = 0;
-            
-            for (SSTable sstable : sstables) {
-                totalSize += sstable.getDataSize();
-                totalEntries += sstable.getEntryCount();
+            while (iterator.next()) {
+                if (++merged % SHUTDOWN_CHECK_INTERVAL == 0 && closed) {
+                    throw new IOException("SSTable manager closed during compaction");
+                }
+                if (iterator.value().isTombstone() && !mayHoldOlder(others, iterator.key(), iterator.value())) {
+                    droppedTombstones++;
+                    continue;
+                }
+                if (writer == null) {
+                    writer = new SSTable.Writer(dataDirectory, nextFileId.getAndIncrement(), expectedKeys,
+                                                bloomBitsPerKey, blockCache);
+                }
+                writer.add(iterator.key(), iterator.value());
+                if (writer.getDataSize() >= maxOutputSize) {
+                    outputs.add(writer.finish());
+                    writer = null;
+                }
             }
+            if (writer != null) {
+                outputs.add(writer.finish());
+                writer = null;
+            }
+            if (droppedTombstones > 0) {
+                logger.fine("Compaction dropped " + droppedTombstones + " tombstones");
+            }
+            return outputs;
             
-            return new SSTableStats(sstables.size(), totalEntries, totalSize);
-            
-        } finally {
-            lock.readLock().unlock();
+        } catch (IOException | RuntimeException e) {
+            if (writer != null) {
+                writer.abort();
+            }
+            for (SSTable output : outputs) {
+                output.delete();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the live tables outside {@code inputs} whose key range overlaps theirs
+     */
+    private List<SSTable> overlappingOthers(List<SSTable> inputs) {
+        String smallest = null;
+        String largest = null;
+        for (SSTable input : inputs) {
+            if (smallest == null || input.getSmallestKey().compareTo(smallest) < 0) {
+                smallest = input.getSmallestKey();
+            }
+            if (largest == null || input.getLargestKey().compareTo(largest) > 0) {
+                largest = input.getLargestKey();
+            }
+        }
+        
+        Set<SSTable> excluded = new HashSet<>(inputs);
+        List<SSTable> others = new ArrayList<>();
+        for (SSTable sstable : current.sstables) {
+            if (!excluded.contains(sstable) && smallest != null && sstable.overlaps(smallest, largest)) {
+                others.add(sstable);
+            }
+        }
+        return others;
+    }
+
+    /**
+     * A tombstone must be kept while another table may hold an older value
+     * it hides. Tables flushed later only hold newer entries, so they never
+     * need it.
+     */
+    private static boolean mayHoldOlder(List<SSTable> others, String key, VersionedValue tombstone) {
+        for (SSTable sstable : others) {
+            if (sstable.getMinSequence() < tombstone.getSequence() && sstable.overlaps(key, key)
+                    && sstable.mightContain(key)) {
+                return true;
+            }
         }
+        return false;
     }
 
+    public SSTableStats getStats() {
+        TableSet tables = current;
+        List<SSTable> sstables = tables.sstables;
+        long totalSize = 0;
+        int totalEntries = 0;
+        
+        for (SSTable sstable : sstables) {
+            totalSize += sstable.getDataSize();
+            totalEntries += sstable.getEntryCount();
+        }
+        
+        int[] levelCounts = new int[tables.levels.size()];
+        for (int level = 0; level < levelCounts.length; level++) {
+            levelCounts[level] = tables.levels.get(level).size();
+        }
+        
+        return new SSTableStats(sstables.size(), totalEntries, totalSize, bloomFilterNegatives.get(),
+                                blockCache != null ? blockCache.getHits() : 0,
+                                blockCache != null ? blockCache.getMisses() : 0,
+                                blockCache != null ? blockCache.getEvictions() : 0,
+                                levelCounts, pendingCompactions.get());
+    }
+
+    /**
+     * Stop background compaction and close all SSTables once their readers
+     * are done.
+     */
     public void close() {
-        lock.writeLock().lock();
+        closed = true;
+        compactor.shutdown();
         try {
-            // Close all SSTables
-            for (SSTable sstable : sstables) {
-                try {
-                    sstable.close();
-                } catch (Exception e) {
-                    logger.warning("Error closing SSTable: " + e.getMessage());
-                }
+            if (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warning("Timed out waiting for SSTable compaction to stop");
             }
-            sstables.clear();
-            sstableMap.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        installLock.lock();
+        try {
+            TableSet previous = current;
+            current = new TableSet(emptyLevels());
+            previous.release();
+            for (SSTable sstable : previous.sstables) {
+                sstable.release();
+            }
+            compactionFinished.signalAll();
             logger.info("SSTableManager closed");
         } finally {
-            lock.writeLock().unlock();
+            installLock.unlock();
+        }
+    }
+
+    /**
+     * Merged cursor over a key range that keeps its SSTables open until it is
+     * closed.
+     */
+    static final class RangeScan implements SortedCursor, Closeable {
+        private final MergingIterator merged;
+        private TableSet tables; // Null once closed
+
+        private RangeScan(MergingIterator merged, TableSet tables) {
+            this.merged = merged;
+            this.tables = tables;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (tables == null) {
+                throw new IOException("Scan is closed");
+            }
+            return merged.next();
+        }
+
+        @Override
+        public String key() {
+            return merged.key();
+        }
+
+        @Override
+        public VersionedValue value() {
+            return merged.value();
+        }
+
+        @Override
+        public void close() {
+            if (tables != null) {
+                tables.release();
+                tables = null;
+            }
+        }
+    }
+
+    /**
+     * Immutable snapshot of the live tables. It holds a reference to each of
+     * its tables; the manager holds one reference to the current set, and
+     * each reader holds one while it reads.
+     */
+    private static final class TableSet {
+        private final List<List<SSTable>> levels; // Level 0 oldest first, deeper levels in key order
+        private final List<SSTable> sstables; // Every level, oldest first
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        TableSet(List<List<SSTable>> levels) {
+            List<List<SSTable>> sorted = new ArrayList<>();
+            List<SSTable> all = new ArrayList<>();
+            for (int level = 0; level < levels.size(); level++) {
+                List<SSTable> tables = new ArrayList<>(levels.get(level));
+                if (level == 0) {
+                    sortSSTables(tables);
+                } else {
+                    tables.sort(Comparator.comparing(SSTable::getSmallestKey));
+                }
+                sorted.add(Collections.unmodifiableList(tables));
+                all.addAll(tables);
+            }
+            sortSSTables(all);
+            this.levels = Collections.unmodifiableList(sorted);
+            this.sstables = Collections.unmodifiableList(all);
+            for (SSTable sstable : this.sstables) {
+                sstable.retain();
+            }
+        }
+
+        /**
+         * @return a mutable copy of the levels for building the next set
+         */
+        List<List<SSTable>> copyLevels() {
+            List<List<SSTable>> copy = new ArrayList<>();
+            for (List<SSTable> level : levels) {
+                copy.add(new ArrayList<>(level));
+            }
+            return copy;
+        }
+
+        /**
+         * @return false if the set has been superseded and released
+         */
+        boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                for (SSTable sstable : sstables) {
+                    sstable.release();
+                }
+            }
         }
     }
 
@@ -277,11 +852,25 @@ public class SSTableManager {
         private final int sstableCount;
         private final int totalEntries;
         private final long totalSize;
+        private final long bloomFilterNegatives;
+        private final long blockCacheHits;
+        private final long blockCacheMisses;
+        private final long blockCacheEvictions;
+        private final int[] levelCounts;
+        private final int pendingCompactions;
         
-        public SSTableStats(int sstableCount, int totalEntries, long totalSize) {
+        public SSTableStats(int sstableCount, int totalEntries, long totalSize, long bloomFilterNegatives,
+                            long blockCacheHits, long blockCacheMisses, long blockCacheEvictions,
+                            int[] levelCounts, int pendingCompactions) {
             this.sstableCount = sstableCount;
             this.totalEntries = totalEntries;
             this.totalSize = totalSize;
+            this.bloomFilterNegatives = bloomFilterNegatives;
+            this.blockCacheHits = blockCacheHits;
+            this.blockCacheMisses = blockCacheMisses;
+            this.blockCacheEvictions = blockCacheEvictions;
+            this.levelCounts = levelCounts.clone();
+            this.pendingCompactions = pendingCompactions;
         }
         
         public int getSSTableCount() {
@@ -295,11 +884,48 @@ public class SSTableManager {
         public long getTotalSize() {
             return totalSize;
         }
+
+        /**
+         * @return the number of SSTable lookups skipped because a Bloom filter
+         *         ruled the key out
+         */
+        public long getBloomFilterNegatives() {
+            return bloomFilterNegatives;
+        }
+
+        public long getBlockCacheHits() {
+            return blockCacheHits;
+        }
+
+        public long getBlockCacheMisses() {
+            return blockCacheMisses;
+        }
+
+        public long getBlockCacheEvictions() {
+            return blockCacheEvictions;
+        }
+
+        /**
+         * @return the number of SSTables in each level, level 0 first
+         */
+        public int[] getLevelCounts() {
+            return levelCounts.clone();
+        }
+
+        /**
+         * @return the number of background compactions queued or running
+         */
+        public int getPendingCompactions() {
+            return pendingCompactions;
+        }
         
         @Override
         public String toString() {
-            return String.format("SSTableStats{sstableCount=%d, totalEntries=%d, totalSize=%d bytes}",
-                               sstableCount, totalEntries, totalSize);
+            return String.format("SSTableStats{sstableCount=%d, totalEntries=%d, totalSize=%d bytes, bloomFilterNegatives=%d, "
+                               + "blockCache=%d hits/%d misses/%d evictions, levels=%s, pendingCompactions=%d}",
+                               sstableCount, totalEntries, totalSize, bloomFilterNegatives,
+                               blockCacheHits, blockCacheMisses, blockCacheEvictions,
+                               Arrays.toString(levelCounts), pendingCompactions);
         }
     }
 }
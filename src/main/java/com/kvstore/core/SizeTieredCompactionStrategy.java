@@ -0,0 +1,130 @@
+package com.kvstore.core;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Chooses compactions that merge SSTables of similar size.
+ *
+ * All tables stay in a single level. Idle tables are grouped into buckets
+ * whose members are within {@value #BUCKET_LOW}-{@value #BUCKET_HIGH} times the
+ * bucket's average size; tables under {@value #SMALL_TABLE_SIZE} bytes all
+ * share one bucket. Once a bucket has
+ * {@link StoreOptions#getSizeTieredMinThreshold()} tables, up to
+ * {@link StoreOptions#getSizeTieredMaxThreshold()} of its smallest are merged
+ * into one table, which joins the next tier. Each entry is rewritten about
+ * once per tier, which keeps write amplification low for ingest-heavy
+ * workloads; the cost is that reads may have to check several overlapping
+ * tables.
+ */
+final class SizeTieredCompactionStrategy implements CompactionStrategy {
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+    private static final long SMALL_TABLE_SIZE = 50L * 1024 * 1024;
+
+    private final int minThreshold;
+    private final int maxThreshold;
+
+    SizeTieredCompactionStrategy(StoreOptions options) {
+        this.minThreshold = options.getSizeTieredMinThreshold();
+        this.maxThreshold = options.getSizeTieredMaxThreshold();
+    }
+
+    @Override
+    public int getLevelCount() {
+        return 1;
+    }
+
+    /**
+     * Merge the bucket of similarly sized tables with the smallest average
+     * size, which is the cheapest way to cut the table count.
+     */
+    @Override
+    public Compaction pick(List<List<SSTable>> levels, Set<SSTable> busy) {
+        List<SSTable> tables = levels.get(0);
+        int legacyTables = countLegacyTables(tables);
+        if (legacyTables > 1) {
+            return pickLegacy(tables.subList(0, legacyTables), busy);
+        }
+
+        List<SSTable> idle = new ArrayList<>();
+        for (SSTable sstable : tables) {
+            if (!busy.contains(sstable)) {
+                idle.add(sstable);
+            }
+        }
+        idle.sort(Comparator.comparingLong(SSTable::getDataSize));
+
+        List<SSTable> bucket = new ArrayList<>();
+        long bucketBytes = 0;
+        for (SSTable sstable : idle) {
+            long size = sstable.getDataSize();
+            double average = bucket.isEmpty() ? size : (double) bucketBytes / bucket.size();
+            boolean fits = (size >= average * BUCKET_LOW && size <= average * BUCKET_HIGH)
+                    || (size < SMALL_TABLE_SIZE && average < SMALL_TABLE_SIZE);
+            if (!fits) {
+                if (bucket.size() >= minThreshold) {
+                    break;
+                }
+                bucket.clear();
+                bucketBytes = 0;
+            }
+            bucket.add(sstable);
+            bucketBytes += size;
+        }
+        if (bucket.size() < minThreshold) {
+            return null;
+        }
+
+        // Merge the smallest members, keeping the manager's oldest-first order
+        List<SSTable> chosen = bucket.subList(0, Math.min(bucket.size(), maxThreshold));
+        List<SSTable> inputs = new ArrayList<>();
+        for (SSTable sstable : tables) {
+            if (chosen.contains(sstable)) {
+                inputs.add(sstable);
+            }
+        }
+        return new Compaction(0, 0, inputs, Long.MAX_VALUE);
+    }
+
+    /**
+     * Entries written before sequence numbers all share sequence 0 and are
+     * ordered only by table age, so tables holding them are merged together
+     * before anything else. They sort first, so they are a prefix of level 0.
+     */
+    private static int countLegacyTables(List<SSTable> tables) {
+        int count = 0;
+        while (count < tables.size() && tables.get(count).getMaxSequence() <= 0) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return a merge of the legacy tables, or null while any is busy
+     */
+    private static Compaction pickLegacy(List<SSTable> legacy, Set<SSTable> busy) {
+        for (SSTable sstable : legacy) {
+            if (busy.contains(sstable)) {
+                return null;
+            }
+        }
+        return new Compaction(0, 0, new ArrayList<>(legacy), Long.MAX_VALUE);
+    }
+
+    /**
+     * Merge everything into one table.
+     */
+    @Override
+    public Compaction pickAll(List<List<SSTable>> levels) {
+        List<SSTable> inputs = new ArrayList<>();
+        for (int level = levels.size() - 1; level >= 0; level--) {
+            inputs.addAll(levels.get(level));
+        }
+        if (inputs.isEmpty()) {
+            return null;
+        }
+        return new Compaction(0, 0, inputs, Long.MAX_VALUE);
+    }
+}
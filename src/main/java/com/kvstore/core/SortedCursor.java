@@ -0,0 +1,63 @@
+package com.kvstore.core;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Forward-only cursor over versioned entries in key order, with at most one
+ * entry per key. The order is ascending unless the cursor was opened in
+ * reverse, in which case it is descending. SSTable scanners, memtable slices
+ * and merges of them all present this shape, so they can be stacked.
+ */
+interface SortedCursor {
+
+    /**
+     * Move to the next entry.
+     *
+     * @return false once the cursor is exhausted
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return the key of the current entry
+     */
+    String key();
+
+    /**
+     * @return the value of the current entry, which may be a tombstone
+     */
+    VersionedValue value();
+
+    /**
+     * @param entries entries in the cursor's key order, such as a memtable slice
+     */
+    static SortedCursor of(List<Map.Entry<String, VersionedValue>> entries) {
+        return of(entries.iterator());
+    }
+
+    /**
+     * @param iterator entries in the cursor's key order
+     */
+    static SortedCursor of(Iterator<Map.Entry<String, VersionedValue>> iterator) {
+        return new SortedCursor() {
+            private Map.Entry<String, VersionedValue> current;
+
+            @Override
+            public boolean next() {
+                current = iterator.hasNext() ? iterator.next() : null;
+                return current != null;
+            }
+
+            @Override
+            public String key() {
+                return current.getKey();
+            }
+
+            @Override
+            public VersionedValue value() {
+                return current.getValue();
+            }
+        };
+    }
+}
@@ -0,0 +1,313 @@
+package com.kvstore.core;
+
+/**
+ * Tunable settings for {@link EnhancedKVStore} and its components.
+ * Setters return {@code this} so options can be chained.
+ */
+public class StoreOptions {
+
+    /**
+     * How SSTables are chosen for compaction.
+     */
+    public enum CompactionStyle {
+        LEVELED,    // size-bounded levels of non-overlapping tables; fewer tables per read
+        SIZE_TIERED // merge tables of similar size; less rewriting for write-heavy loads
+    }
+
+    // Segments are memory mapped whole during replay
+    private static final long MAX_WAL_SEGMENT_SIZE = 1024L * 1024 * 1024;
+
+    private boolean groupCommit = true;
+    private long walSegmentSize = 64L * 1024 * 1024;
+    private boolean walMemoryMapped = false;
+    private DurabilityPolicy durability = DurabilityPolicy.syncPerWrite();
+    private boolean walCompression = false;
+    private int walCompressionThreshold = 1024;
+    private long memtableSize = 64L * 1024 * 1024;
+    private boolean memtableOffHeap = false;
+    private int bloomBitsPerKey = SSTable.DEFAULT_BLOOM_BITS_PER_KEY;
+    private long blockCacheSize = 32L * 1024 * 1024;
+    private long sstableTargetSize = 64L * 1024 * 1024;
+    private int compactionThreads = 1;
+    private int level0CompactionTrigger = 4;
+    private long levelBaseSize = 256L * 1024 * 1024;
+    private int levelSizeMultiplier = 10;
+    private CompactionStyle compactionStyle = CompactionStyle.LEVELED;
+    private int sizeTieredMinThreshold = 4;
+    private int sizeTieredMaxThreshold = 32;
+
+    /**
+     * Whether concurrent WAL appends are batched by a background flusher so
+     * that many records share a single fsync.
+     */
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    public StoreOptions setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+        return this;
+    }
+
+    /**
+     * Target size in bytes of a WAL segment before the log rolls to a new one.
+     */
+    public long getWalSegmentSize() {
+        return walSegmentSize;
+    }
+
+    public StoreOptions setWalSegmentSize(long walSegmentSize) {
+        if (walSegmentSize <= WALRecord.FILE_HEADER_SIZE || walSegmentSize > MAX_WAL_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid WAL segment size: " + walSegmentSize);
+        }
+        this.walSegmentSize = walSegmentSize;
+        return this;
+    }
+
+    /**
+     * Whether WAL segments are preallocated and written through a memory
+     * mapping instead of write system calls. Segments are then limited to 2 GB.
+     */
+    public boolean isWalMemoryMapped() {
+        return walMemoryMapped;
+    }
+
+    public StoreOptions setWalMemoryMapped(boolean walMemoryMapped) {
+        this.walMemoryMapped = walMemoryMapped;
+        return this;
+    }
+
+    /**
+     * When WAL writes are forced to disk. Defaults to syncing every write.
+     */
+    public DurabilityPolicy getDurability() {
+        return durability;
+    }
+
+    public StoreOptions setDurability(DurabilityPolicy durability) {
+        if (durability == null) {
+            throw new IllegalArgumentException("Durability policy must not be null");
+        }
+        this.durability = durability;
+        return this;
+    }
+
+    /**
+     * Whether large values are LZ4-compressed in WAL records.
+     */
+    public boolean isWalCompression() {
+        return walCompression;
+    }
+
+    public StoreOptions setWalCompression(boolean walCompression) {
+        this.walCompression = walCompression;
+        return this;
+    }
+
+    /**
+     * Minimum value size in bytes for WAL compression to be attempted.
+     */
+    public int getWalCompressionThreshold() {
+        return walCompressionThreshold;
+    }
+
+    public StoreOptions setWalCompressionThreshold(int walCompressionThreshold) {
+        if (walCompressionThreshold < 0) {
+            throw new IllegalArgumentException("Invalid WAL compression threshold: " + walCompressionThreshold);
+        }
+        this.walCompressionThreshold = walCompressionThreshold;
+        return this;
+    }
+
+    /**
+     * Approximate memtable footprint in bytes at which it is frozen and
+     * flushed. Writes are slowed as a new memtable approaches this size while
+     * the previous one is still flushing, and stall once it reaches it.
+     */
+    public long getMemtableSize() {
+        return memtableSize;
+    }
+
+    public StoreOptions setMemtableSize(long memtableSize) {
+        if (memtableSize <= 0) {
+            throw new IllegalArgumentException("Invalid memtable size: " + memtableSize);
+        }
+        this.memtableSize = memtableSize;
+        return this;
+    }
+
+    /**
+     * Whether memtables keep keys, values and their index in off-heap arenas
+     * instead of heap objects, which keeps large memtables out of GC pauses.
+     */
+    public boolean isMemtableOffHeap() {
+        return memtableOffHeap;
+    }
+
+    public StoreOptions setMemtableOffHeap(boolean memtableOffHeap) {
+        this.memtableOffHeap = memtableOffHeap;
+        return this;
+    }
+
+    /**
+     * Bloom filter bits per key for new SSTables; 10 bits gives roughly a 1%
+     * false positive rate. 0 writes tables without a filter.
+     */
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    public StoreOptions setBloomBitsPerKey(int bloomBitsPerKey) {
+        if (bloomBitsPerKey < 0 || bloomBitsPerKey > 64) {
+            throw new IllegalArgumentException("Invalid Bloom filter bits per key: " + bloomBitsPerKey);
+        }
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        return this;
+    }
+
+    /**
+     * Capacity in bytes of the cache of SSTable blocks shared by all tables
+     * of the store; 0 disables it.
+     */
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    public StoreOptions setBlockCacheSize(long blockCacheSize) {
+        if (blockCacheSize < 0) {
+            throw new IllegalArgumentException("Invalid block cache size: " + blockCacheSize);
+        }
+        this.blockCacheSize = blockCacheSize;
+        return this;
+    }
+
+    /**
+     * Data file size at which compaction starts a new output SSTable.
+     */
+    public long getSstableTargetSize() {
+        return sstableTargetSize;
+    }
+
+    public StoreOptions setSstableTargetSize(long sstableTargetSize) {
+        if (sstableTargetSize <= 0) {
+            throw new IllegalArgumentException("Invalid SSTable target size: " + sstableTargetSize);
+        }
+        this.sstableTargetSize = sstableTargetSize;
+        return this;
+    }
+
+    /**
+     * Number of background threads that run SSTable compactions.
+     */
+    public int getCompactionThreads() {
+        return compactionThreads;
+    }
+
+    public StoreOptions setCompactionThreads(int compactionThreads) {
+        if (compactionThreads <= 0) {
+            throw new IllegalArgumentException("Invalid compaction thread count: " + compactionThreads);
+        }
+        this.compactionThreads = compactionThreads;
+        return this;
+    }
+
+    /**
+     * Number of freshly flushed SSTables in level 0 that triggers merging
+     * them into level 1.
+     */
+    public int getLevel0CompactionTrigger() {
+        return level0CompactionTrigger;
+    }
+
+    public StoreOptions setLevel0CompactionTrigger(int level0CompactionTrigger) {
+        if (level0CompactionTrigger <= 0) {
+            throw new IllegalArgumentException("Invalid level 0 compaction trigger: " + level0CompactionTrigger);
+        }
+        this.level0CompactionTrigger = level0CompactionTrigger;
+        return this;
+    }
+
+    /**
+     * Total data size in bytes that level 1 may hold before tables are
+     * pushed down to level 2.
+     */
+    public long getLevelBaseSize() {
+        return levelBaseSize;
+    }
+
+    public StoreOptions setLevelBaseSize(long levelBaseSize) {
+        if (levelBaseSize <= 0) {
+            throw new IllegalArgumentException("Invalid level base size: " + levelBaseSize);
+        }
+        this.levelBaseSize = levelBaseSize;
+        return this;
+    }
+
+    /**
+     * Factor by which each level from level 2 on may outgrow the one above it.
+     */
+    public int getLevelSizeMultiplier() {
+        return levelSizeMultiplier;
+    }
+
+    public StoreOptions setLevelSizeMultiplier(int levelSizeMultiplier) {
+        if (levelSizeMultiplier < 2) {
+            throw new IllegalArgumentException("Invalid level size multiplier: " + levelSizeMultiplier);
+        }
+        this.levelSizeMultiplier = levelSizeMultiplier;
+        return this;
+    }
+
+    /**
+     * Compaction strategy used for the store's SSTables. It can be changed
+     * between restarts; existing tables are regrouped by the new strategy.
+     */
+    public CompactionStyle getCompactionStyle() {
+        return compactionStyle;
+    }
+
+    public StoreOptions setCompactionStyle(CompactionStyle compactionStyle) {
+        if (compactionStyle == null) {
+            throw new IllegalArgumentException("Compaction style must not be null");
+        }
+        this.compactionStyle = compactionStyle;
+        return this;
+    }
+
+    /**
+     * Number of similarly sized SSTables that triggers a size-tiered compaction.
+     */
+    public int getSizeTieredMinThreshold() {
+        return sizeTieredMinThreshold;
+    }
+
+    /**
+     * Most SSTables merged by one size-tiered compaction.
+     */
+    public int getSizeTieredMaxThreshold() {
+        return sizeTieredMaxThreshold;
+    }
+
+    public StoreOptions setSizeTieredThresholds(int minThreshold, int maxThreshold) {
+        if (minThreshold < 2 || maxThreshold < minThreshold) {
+            throw new IllegalArgumentException("Invalid size-tiered thresholds: " + minThreshold + "-" + maxThreshold);
+        }
+        this.sizeTieredMinThreshold = minThreshold;
+        this.sizeTieredMaxThreshold = maxThreshold;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StoreOptions{groupCommit=%s, walSegmentSize=%d, walMemoryMapped=%s, durability=%s, "
+                             + "walCompression=%s, walCompressionThreshold=%d, memtableSize=%d, memtableOffHeap=%s, "
+                             + "bloomBitsPerKey=%d, blockCacheSize=%d, sstableTargetSize=%d, "
+                             + "compactionThreads=%d, level0CompactionTrigger=%d, levelBaseSize=%d, "
+                             + "levelSizeMultiplier=%d, compactionStyle=%s, sizeTieredThresholds=%d-%d}",
+                             groupCommit, walSegmentSize, walMemoryMapped, durability,
+                             walCompression, walCompressionThreshold, memtableSize, memtableOffHeap,
+                             bloomBitsPerKey, blockCacheSize, sstableTargetSize,
+                             compactionThreads, level0CompactionTrigger, levelBaseSize, levelSizeMultiplier,
+                             compactionStyle, sizeTieredMinThreshold, sizeTieredMaxThreshold);
+    }
+}
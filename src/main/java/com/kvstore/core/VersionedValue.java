@@ -0,0 +1,40 @@
+package com.kvstore.core;
+
+/**
+ * A value together with the sequence number of the mutation that wrote it.
+ * When the same key appears in several places, the higher sequence wins.
+ * A null value is a tombstone recording a delete.
+ */
+public final class VersionedValue {
+    private final long sequence;
+    private final String value;
+
+    public VersionedValue(long sequence, String value) {
+        this.sequence = sequence;
+        this.value = value;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public boolean isTombstone() {
+        return value == null;
+    }
+
+    /**
+     * @return whether this value should replace {@code other} for the same key
+     */
+    boolean isNewerThan(VersionedValue other) {
+        return other == null || sequence > other.sequence;
+    }
+
+    @Override
+    public String toString() {
+        return "VersionedValue{sequence=" + sequence + ", value=" + value + "}";
+    }
+}
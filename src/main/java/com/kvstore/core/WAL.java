@@ -1,172 +1,782 @@
 package com.kvstore.core;
 import java.io.*;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+/**
+ * Write-ahead log split into numbered segments of a fixed target size.
+ *
+ * Segment files are named after the first sequence number they may contain,
+ * so every record in a segment is older than the next segment's base. The
+ * manifest records the highest sequence number persisted in SSTables; segments
+ * wholly below it are unlinked in the background and skipped on replay.
+ *
+ * A failed write leaves the end of the log in an unknown state, so the log
+ * is fail-stop: after the first failure every later record is refused, and
+ * the store has to be reopened, which replays only what reached the log.
+ *
+ * Only the last segment can legitimately end in a torn record: a segment is
+ * synced before the log rolls past it. A corrupt record in any earlier segment
+ * would leave a gap in the history, so replay fails rather than skip it.
+ */
 public class WAL {
     private static final Logger logger = Logger.getLogger(WAL.class.getName());
-    private static final String WAL_FILE = "wal.log";
-    private static final String WAL_INDEX = "wal.idx";
-    
-    private final Path walPath;
-    private final Path indexPath;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String MANIFEST_FILE = "wal.manifest";
+    private static final String UNSEGMENTED_WAL_FILE = "wal.log";
+    private static final String LEGACY_WAL_FILE = "wal.v1.log";
+    private static final int MANIFEST_MAGIC = 0x4B564D46; // "KVMF"
+    private static final int REPLAY_PARALLELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final Path directory;
+    private final Path manifestPath;
+    private final Path legacyPath;
+    private final long segmentSize;
     private final ReentrantReadWriteLock lock;
-    private RandomAccessFile walFile;
-    private long currentPosition;
-    
+    private final List<Segment> segments;
+    private final boolean memoryMapped;
+    private final DurabilityPolicy durability;
+    private final int compressionThreshold;
+    private final BackgroundSyncer syncer;
+    private volatile WALSegmentWriter writer;
+    private volatile long flushedSequence;
+    private volatile IOException failure; // First write failure; set once, never cleared
+
+    // Group commit state: appenders enqueue under appendLock, the flusher thread
+    // writes and syncs whole batches and completes each record's future.
+    private final boolean groupCommit;
+    private final ReentrantLock appendLock;
+    private final LinkedBlockingQueue<PendingRecord> pending;
+    private final ExecutorService cleaner;
+    private Thread flusher;
+    private volatile boolean running;
+    private long lastSequence;
+
+    // Figures from the last replay, reported in store statistics
+    private volatile long replayedRecords;
+    private volatile long replayedBytes;
+    private volatile long replayMillis;
+
     public WAL(String dataDirectory) throws IOException {
-        this.walPath = Paths.get(dataDirectory, WAL_FILE);
-        this.indexPath = Paths.get(dataDirectory, WAL_INDEX);
+        this(dataDirectory, new StoreOptions());
+    }
+
+    public WAL(String dataDirectory, StoreOptions options) throws IOException {
+        this.directory = Paths.get(dataDirectory);
+        this.manifestPath = directory.resolve(MANIFEST_FILE);
+        this.legacyPath = directory.resolve(LEGACY_WAL_FILE);
+        this.segmentSize = options.getWalSegmentSize();
+        this.memoryMapped = options.isWalMemoryMapped();
+        this.durability = options.getDurability();
+        this.compressionThreshold = options.isWalCompression()
+                ? options.getWalCompressionThreshold() : Integer.MAX_VALUE;
+        this.syncer = new BackgroundSyncer("wal-syncer", durability, this::syncActiveSegment);
         this.lock = new ReentrantReadWriteLock();
+        this.segments = new ArrayList<>();
+        this.groupCommit = options.isGroupCommit();
+        this.appendLock = new ReentrantLock();
+        this.pending = new LinkedBlockingQueue<>();
+        this.cleaner = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "wal-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
         initializeWAL();
     }
-    
+
     private void initializeWAL() throws IOException {
         // Create directory if it doesn't exist
-        Files.createDirectories(walPath.getParent());
-        
-        // Initialize WAL file
-        if (!Files.exists(walPath)) {
-            Files.createFile(walPath);
+        Files.createDirectories(directory);
+
+        flushedSequence = readManifest();
+        migrateUnsegmentedLog();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(new Segment(parseBaseSequence(path), path));
+            }
         }
-        
-        // Open WAL file for appending
-        walFile = new RandomAccessFile(walPath.toFile(), "rw");
-        currentPosition = walFile.length();
-        
-        logger.info("WAL initialized at: " + walPath);
+        segments.sort((a, b) -> Long.compare(a.baseSequence, b.baseSequence));
+
+        lastSequence = flushedSequence;
+        if (segments.isEmpty()) {
+            createSegment(lastSequence + 1, 0);
+        } else {
+            // Find the end of the last intact record and drop any torn tail
+            Segment active = segments.get(segments.size() - 1);
+            lastSequence = Math.max(lastSequence, active.baseSequence - 1);
+            long validLength;
+            try (WALRecord.Reader reader = new WALRecord.Reader(active.path)) {
+                WALRecord record;
+                while ((record = reader.next()) != null) {
+                    lastSequence = Math.max(lastSequence, record.sequence);
+                }
+                validLength = reader.getValidLength();
+            }
+
+            // Open WAL file for appending
+            writer = WALSegmentWriter.open(active.path, validLength, segmentSize, memoryMapped);
+        }
+
+        if (groupCommit) {
+            running = true;
+            flusher = new Thread(this::runFlusher, "wal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        logger.info("WAL initialized at: " + directory + " with " + segments.size() + " segments"
+                    + (groupCommit ? " (group commit)" : "") + (memoryMapped ? " (memory mapped)" : "")
+                    + (compressionThreshold < Integer.MAX_VALUE ? " (compressed)" : "")
+                    + ", durability " + durability);
     }
 
+    /**
+     * Bring logs from older versions into the segmented layout. An unversioned
+     * log is kept aside for replay only; a single checksummed wal.log becomes
+     * the first segment.
+     */
+    private void migrateUnsegmentedLog() throws IOException {
+        Path unsegmentedPath = directory.resolve(UNSEGMENTED_WAL_FILE);
+        if (!Files.exists(unsegmentedPath)) {
+            return;
+        }
+        if (Files.size(unsegmentedPath) == 0) {
+            Files.delete(unsegmentedPath);
+        } else if (!WALRecord.hasFileHeader(unsegmentedPath)) {
+            Files.move(unsegmentedPath, legacyPath, StandardCopyOption.REPLACE_EXISTING);
+            logger.info("Moved legacy WAL to " + legacyPath);
+        } else {
+            Files.move(unsegmentedPath, segmentPath(0));
+            logger.info("Moved " + unsegmentedPath + " to the first WAL segment");
+        }
+    }
+
+    private Path segmentPath(long baseSequence) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, baseSequence, SEGMENT_SUFFIX));
+    }
+
+    private static long parseBaseSequence(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed WAL segment name: " + name);
+        }
+    }
+
+    /**
+     * Seal the active segment and start a new one large enough for at least
+     * {@code minLength} bytes of records. Must be called with the write lock held.
+     */
+    private void createSegment(long baseSequence, int minLength) throws IOException {
+        if (writer != null) {
+            if (durability.getMode() != DurabilityPolicy.Mode.OS_BUFFERED) {
+                writer.sync();
+            }
+            writer.close();
+        }
+        Segment segment = new Segment(baseSequence, segmentPath(baseSequence));
+        Files.write(segment.path, WALRecord.fileHeader());
+        segments.add(segment);
+        long capacity = Math.max(segmentSize, (long) WALRecord.FILE_HEADER_SIZE + minLength);
+        writer = WALSegmentWriter.open(segment.path, WALRecord.FILE_HEADER_SIZE, capacity, memoryMapped);
+        logger.fine("Started WAL segment " + segment.path.getFileName());
+    }
+
+    /**
+     * Write records to the active segment, rolling to a new segment first if
+     * they would push it past the target size. Must be called with the write
+     * lock held.
+     */
+    private void writeRecords(byte[] buffer, long firstSequence) throws IOException {
+        if (!writer.hasRoom(buffer.length, segmentSize)) {
+            createSegment(firstSequence, buffer.length);
+        }
+        writer.write(buffer);
+        syncer.afterWrite(buffer.length);
+    }
+
+    private void syncActiveSegment() throws IOException {
+        writer.sync();
+    }
+
+    /**
+     * Append a record and block until it is written, and synced to disk if the
+     * durability policy syncs every write.
+     *
+     * @return the sequence number assigned to the record
+     */
     public long append(String operation, String key, String value) throws IOException {
+        if (groupCommit) {
+            return await(submit(operation, key, value).getDurable());
+        }
+
+        byte[] record = WALRecord.encodeUnsequenced(operation, key, value, compressionThreshold);
+        appendLock.lock();
         lock.writeLock().lock();
         try {
-            // Seek to end of file
-            walFile.seek(currentPosition);
-            
-            // Write operation record
-            // Format: timestamp|operation|keyLength|key|valueLength|value
-            long timestamp = System.currentTimeMillis();
-            byte[] keyBytes = key.getBytes("UTF-8");
-            byte[] valueBytes = value != null ? value.getBytes("UTF-8") : new byte[0];
-            
-            // Write record
-            walFile.writeLong(timestamp);
-            walFile.writeUTF(operation);
-            walFile.writeInt(keyBytes.length);
-            walFile.write(keyBytes);
-            walFile.writeInt(valueBytes.length);
-            if (valueBytes.length > 0) {
-                walFile.write(valueBytes);
-            }
-            
-            // Force write to disk
-            walFile.getFD().sync();
-            
-            long position = currentPosition;
-            currentPosition = walFile.getFilePointer();
-            
-            logger.fine("WAL append: " + operation + "|" + key + " at position " + position);
-            return position;
-            
+            checkNotFailed();
+            // Stamped under the lock, but the record is written under it anyway
+            long sequence = lastSequence + 1;
+            WALRecord.setSequence(record, sequence);
+            try {
+                writeRecords(record, sequence);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+            lastSequence = sequence;
+
+            logger.fine("WAL append: " + operation + "|" + key + " with sequence " + sequence);
+            return sequence;
+
         } finally {
             lock.writeLock().unlock();
+            appendLock.unlock();
         }
     }
+
+    /**
+     * Enqueue a record for the group-commit flusher without waiting for it.
+     * Records are written in submission order; the submission's future
+     * completes once the durability policy is satisfied. Without group commit
+     * the record is written and synced before returning.
+     */
+    public Submission submit(String operation, String key, String value) throws IOException {
+        if (!groupCommit) {
+            long sequence = append(operation, key, value);
+            return new Submission(sequence, CompletableFuture.completedFuture(sequence));
+        }
+
+        // Encode and compress outside the lock. The flusher stamps the sequence
+        // and checksum, so the lock is held only to take a sequence number.
+        byte[] record = WALRecord.encodeUnsequenced(operation, key, value, compressionThreshold);
+        PendingRecord pendingRecord;
+        appendLock.lock();
+        try {
+            if (!running) {
+                throw new IOException("WAL is closed");
+            }
+            checkNotFailed();
+            long sequence = lastSequence + 1;
+            pendingRecord = new PendingRecord(sequence, record);
+            lastSequence = sequence;
+            pending.add(pendingRecord);
+        } finally {
+            appendLock.unlock();
+        }
+
+        logger.fine("WAL submit: " + operation + "|" + key + " with sequence " + pendingRecord.sequence);
+        return new Submission(pendingRecord.sequence, pendingRecord.future);
+    }
+
+    /**
+     * @return a future that completes once every record submitted so far is
+     *         durable, or fails if any of them could not be written
+     */
+    public CompletableFuture<Long> barrier() {
+        if (!groupCommit) {
+            // Records are written before append returns
+            IOException failed = failure;
+            return failed == null ? CompletableFuture.completedFuture(getLastSequence())
+                                  : CompletableFuture.failedFuture(failed);
+        }
+        appendLock.lock();
+        try {
+            if (!running) {
+                return CompletableFuture.failedFuture(new IOException("WAL is closed"));
+            }
+            // An empty record takes no sequence but completes with its batch
+            PendingRecord marker = new PendingRecord(lastSequence + 1, new byte[0]);
+            pending.add(marker);
+            return marker.future;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void checkNotFailed() throws IOException {
+        IOException failed = failure;
+        if (failed != null) {
+            throw new IOException("WAL refuses writes after an earlier failure: " + failed.getMessage(), failed);
+        }
+    }
+
+    /**
+     * @return whether a write has failed, after which the log refuses new records
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Wait for a submitted record to become durable.
+     */
+    public static long await(CompletableFuture<Long> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for WAL sync", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("WAL sync failed", cause);
+        }
+    }
+
+    /**
+     * @return the sequence number of the most recently submitted record
+     */
+    public long getLastSequence() {
+        appendLock.lock();
+        try {
+            return lastSequence;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Make sure the next sequence number handed out is greater than
+     * {@code sequence}, e.g. one already persisted in an SSTable whose WAL
+     * segments have been removed.
+     */
+    public void advanceSequence(long sequence) {
+        appendLock.lock();
+        try {
+            if (sequence > lastSequence) {
+                logger.info("Advancing WAL sequence from " + lastSequence + " to " + sequence);
+                lastSequence = sequence;
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void runFlusher() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (true) {
+            try {
+                PendingRecord first = pending.take();
+                if (first == PendingRecord.SHUTDOWN) {
+                    return;
+                }
+                batch.add(first);
+                pending.drainTo(batch);
+
+                boolean shutdown = batch.remove(PendingRecord.SHUTDOWN);
+                writeBatch(batch);
+                batch.clear();
+                if (shutdown) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingRecord> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        int batchSize = 0;
+        for (PendingRecord record : batch) {
+            batchSize += record.data.length;
+        }
+        byte[] buffer = new byte[batchSize];
+        int offset = 0;
+        for (PendingRecord record : batch) {
+            if (record.data.length > 0) {
+                WALRecord.setSequence(record.data, record.sequence);
+            }
+            System.arraycopy(record.data, 0, buffer, offset, record.data.length);
+            offset += record.data.length;
+        }
+
+        // Records queued behind a failed batch must not land after the damage
+        IOException failed = failure;
+        if (failed == null && batchSize > 0) {
+            lock.writeLock().lock();
+            try {
+                writeRecords(buffer, batch.get(0).sequence);
+            } catch (IOException e) {
+                logger.severe("Failed to write WAL batch of " + batch.size() + " records: " + e.getMessage());
+                failure = e;
+                failed = e;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        for (PendingRecord record : batch) {
+            if (failed == null) {
+                record.future.complete(record.sequence);
+            } else {
+                record.future.completeExceptionally(failed);
+            }
+        }
+        logger.fine("WAL group commit: " + batch.size() + " records, " + batchSize + " bytes");
+    }
+
+    /**
+     * Replay every record newer than the flushed sequence number, oldest first.
+     * Segments are decoded in parallel a few at a time, but records are always
+     * handed to the handler in sequence order from the calling thread.
+     *
+     * @throws IOException if a segment other than the last one is corrupt;
+     *         nothing after the corruption is replayed
+     */
     public void replay(RecoveryHandler recoveryHandler) throws IOException {
         lock.readLock().lock();
         try {
-            if (!Files.exists(walPath) || Files.size(walPath) == 0) {
-                logger.info("WAL is empty, no recovery needed");
-                return;
+            long startTime = System.nanoTime();
+            long recoveredOperations = 0;
+            long recoveredBytes = 0;
+            if (Files.exists(legacyPath)) {
+                recoveredOperations += replayLegacy(recoveryHandler);
+                recoveredBytes += Files.size(legacyPath);
+            }
+
+            List<Segment> toReplay = new ArrayList<>();
+            for (int i = 0; i < segments.size(); i++) {
+                boolean active = i == segments.size() - 1;
+                if (active || segments.get(i + 1).baseSequence - 1 > flushedSequence) {
+                    toReplay.add(segments.get(i));
+                }
             }
-            
-            logger.info("Starting WAL replay...");
-            int recoveredOperations = 0;
-            
-            // Open WAL file for reading
-            try (RandomAccessFile reader = new RandomAccessFile(walPath.toFile(), "r")) {
-                long position = 0;
-                
-                while (position < reader.length()) {
-                    reader.seek(position);
-                    
-                    try {
-                        // Read record
-                        long timestamp = reader.readLong();
-                        String operation = reader.readUTF();
-                        int keyLength = reader.readInt();
-                        byte[] keyBytes = new byte[keyLength];
-                        reader.readFully(keyBytes);
-                        String key = new String(keyBytes, "UTF-8");
-                        
-                        int valueLength = reader.readInt();
-                        String value = null;
-                        if (valueLength > 0) {
-                            byte[] valueBytes = new byte[valueLength];
-                            reader.readFully(valueBytes);
-                            value = new String(valueBytes, "UTF-8");
+
+            logger.info("Starting WAL replay of " + toReplay.size() + " segments after sequence " + flushedSequence);
+
+            int parallelism = Math.min(toReplay.size(), REPLAY_PARALLELISM);
+            ExecutorService decoders = parallelism > 1 ? Executors.newFixedThreadPool(parallelism, r -> {
+                Thread thread = new Thread(r, "wal-replay");
+                thread.setDaemon(true);
+                return thread;
+            }) : null;
+            try {
+                // Keep a bounded window of segments decoding ahead of the one being applied
+                Deque<Future<DecodedSegment>> window = new ArrayDeque<>();
+                int next = 0;
+                while (next < toReplay.size() || !window.isEmpty()) {
+                    while (next < toReplay.size() && window.size() < Math.max(parallelism, 1)) {
+                        Segment segment = toReplay.get(next++);
+                        boolean last = next == toReplay.size();
+                        if (decoders != null) {
+                            window.add(decoders.submit(() -> decodeSegment(segment, last)));
+                        } else {
+                            window.add(CompletableFuture.completedFuture(decodeSegment(segment, last)));
                         }
-                        
-                        // Process the operation
-                        recoveryHandler.handleOperation(operation, key, value, timestamp);
-                        recoveredOperations++;
-                        
-                        position = reader.getFilePointer();
-                        
-                    } catch (EOFException e) {
-                        // End of file reached
-                        break;
-                    } catch (Exception e) {
-                        logger.warning("Error reading WAL record at position " + position + ": " + e.getMessage());
-                        // Try to continue from next position
-                        position = reader.getFilePointer();
                     }
+
+                    DecodedSegment decoded = awaitDecoded(window.poll());
+                    for (WALRecord record : decoded.records) {
+                        recoveryHandler.handleOperation(record.operation, record.key, record.value, record.sequence);
+                    }
+                    recoveredOperations += decoded.records.size();
+                    recoveredBytes += decoded.bytes;
+                }
+            } finally {
+                if (decoders != null) {
+                    decoders.shutdownNow();
                 }
             }
-            
-            logger.info("WAL replay completed. Recovered " + recoveredOperations + " operations");
-            
+
+            long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000;
+            replayedRecords = recoveredOperations;
+            replayedBytes = recoveredBytes;
+            replayMillis = elapsedMillis;
+
+            double seconds = Math.max(elapsedMillis, 1) / 1000.0;
+            logger.info(String.format("WAL replay completed. Recovered %d operations (%d bytes) in %d ms, "
+                                      + "%.0f records/s, %.1f MB/s",
+                                      recoveredOperations, recoveredBytes, elapsedMillis,
+                                      recoveredOperations / seconds, recoveredBytes / seconds / (1024 * 1024)));
+
         } finally {
             lock.readLock().unlock();
         }
     }
-    public void truncate() throws IOException {
+
+    /**
+     * @param last whether this is the newest segment, the only one that may
+     *             end in a torn record
+     */
+    private DecodedSegment decodeSegment(Segment segment, boolean last) throws IOException {
+        List<WALRecord> records = new ArrayList<>();
+        long bytes;
+        try (WALRecord.Reader reader = new WALRecord.Reader(segment.path)) {
+            WALRecord record;
+            while ((record = reader.next()) != null) {
+                if (record.sequence > flushedSequence) {
+                    records.add(record);
+                }
+            }
+            if (reader.isTornTail()) {
+                if (!last) {
+                    throw new IOException("Corrupt record in sealed WAL segment " + segment.path.getFileName()
+                                          + " at position " + reader.getValidLength());
+                }
+                logger.warning("WAL replay stopped at torn record in " + segment.path.getFileName()
+                               + " at position " + reader.getValidLength());
+            }
+            bytes = reader.getValidLength();
+        }
+        return new DecodedSegment(records, bytes);
+    }
+
+    private static DecodedSegment awaitDecoded(Future<DecodedSegment> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during WAL replay", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("WAL replay failed", cause);
+        }
+    }
+
+    /**
+     * Replay a log written in the original unversioned format. These records
+     * carry no checksum or sequence number, so they are reported with sequence 0
+     * and replay stops at the first record that cannot be decoded.
+     */
+    private long replayLegacy(RecoveryHandler recoveryHandler) throws IOException {
+        long recoveredOperations = 0;
+        try (DataInputStream reader = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(legacyPath)))) {
+            while (true) {
+                String operation;
+                String key;
+                String value = null;
+                try {
+                    // Format: timestamp|operation|keyLength|key|valueLength|value
+                    reader.readLong();
+                    operation = reader.readUTF();
+                    int keyLength = reader.readInt();
+                    byte[] keyBytes = new byte[keyLength];
+                    reader.readFully(keyBytes);
+                    key = new String(keyBytes, "UTF-8");
+
+                    int valueLength = reader.readInt();
+                    if (valueLength > 0) {
+                        byte[] valueBytes = new byte[valueLength];
+                        reader.readFully(valueBytes);
+                        value = new String(valueBytes, "UTF-8");
+                    }
+                } catch (EOFException e) {
+                    break;
+                } catch (IOException | RuntimeException e) {
+                    logger.warning("Stopping legacy WAL replay at unreadable record: " + e.getMessage());
+                    break;
+                }
+
+                recoveryHandler.handleOperation(operation, key, value, 0);
+                recoveredOperations++;
+            }
+        }
+
+        logger.info("Legacy WAL replay recovered " + recoveredOperations + " operations");
+        return recoveredOperations;
+    }
+
+    /**
+     * Record that every operation up to and including the given sequence number
+     * is persisted in SSTables. Segments that only hold such operations are
+     * unlinked in the background; appenders are never blocked by the cleanup.
+     */
+    public void markFlushed(long sequence) throws IOException {
+        if (sequence <= flushedSequence) {
+            return;
+        }
+
+        // The legacy log holds no sequence numbers, so it must be gone before the
+        // manifest would make replay skip anything
+        Files.deleteIfExists(legacyPath);
+        writeManifest(sequence);
+        flushedSequence = sequence;
+
+        try {
+            cleaner.submit(this::deleteFlushedSegments);
+        } catch (RejectedExecutionException e) {
+            logger.fine("WAL cleaner stopped, leaving flushed segments for next start");
+        }
+    }
+
+    private void deleteFlushedSegments() {
+        List<Segment> obsolete = new ArrayList<>();
         lock.writeLock().lock();
         try {
-            // Create a new empty WAL file
-            Files.deleteIfExists(walPath);
-            Files.createFile(walPath);
-            
-            // Reopen the file
-            if (walFile != null) {
-                walFile.close();
-            }
-            walFile = new RandomAccessFile(walPath.toFile(), "rw");
-            currentPosition = 0;
-            
-            logger.info("WAL truncated successfully");
-            
+            // The active segment is never removed
+            while (segments.size() > 1 && segments.get(1).baseSequence - 1 <= flushedSequence) {
+                obsolete.add(segments.remove(0));
+            }
         } finally {
             lock.writeLock().unlock();
         }
+
+        for (Segment segment : obsolete) {
+            try {
+                Files.deleteIfExists(segment.path);
+                logger.fine("Deleted flushed WAL segment " + segment.path.getFileName());
+            } catch (IOException e) {
+                logger.warning("Failed to delete WAL segment " + segment.path + ": " + e.getMessage());
+            }
+        }
+        if (!obsolete.isEmpty()) {
+            logger.info("Deleted " + obsolete.size() + " flushed WAL segments");
+        }
+    }
+
+    private long readManifest() throws IOException {
+        if (!Files.exists(manifestPath)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(manifestPath))) {
+            int magic = in.readInt();
+            long sequence = in.readLong();
+            int expectedCrc = in.readInt();
+            if (magic != MANIFEST_MAGIC || expectedCrc != manifestChecksum(sequence)) {
+                throw new IOException("Corrupt WAL manifest: " + manifestPath);
+            }
+            return sequence;
+        }
+    }
+
+    private void writeManifest(long sequence) throws IOException {
+        Path tempPath = directory.resolve(MANIFEST_FILE + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempPath.toFile());
+             DataOutputStream out = new DataOutputStream(fileOut)) {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeLong(sequence);
+            out.writeInt(manifestChecksum(sequence));
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int manifestChecksum(long sequence) {
+        CRC32C crc = new CRC32C();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (sequence >>> shift));
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the highest sequence number known to be persisted in SSTables
+     */
+    public long getFlushedSequence() {
+        return flushedSequence;
+    }
+
+    public DurabilityPolicy getDurability() {
+        return durability;
+    }
+
+    public long getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    public long getReplayedBytes() {
+        return replayedBytes;
+    }
+
+    public long getReplayMillis() {
+        return replayMillis;
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
+
     public long getSize() throws IOException {
         lock.readLock().lock();
         try {
-            return Files.exists(walPath) ? Files.size(walPath) : 0;
+            // The active segment may be preallocated, so count only what was written.
+            // Sealed segments count their file size, which keeps a memory-mapped
+            // writer's preallocation.
+            long size = writer.position();
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Path path = segments.get(i).path;
+                if (Files.exists(path)) {
+                    size += Files.size(path);
+                }
+            }
+            if (Files.exists(legacyPath)) {
+                size += Files.size(legacyPath);
+            }
+            return size;
         } finally {
             lock.readLock().unlock();
         }
     }
-    
+
     public void close() {
+        if (groupCommit) {
+            appendLock.lock();
+            try {
+                running = false;
+                pending.add(PendingRecord.SHUTDOWN);
+            } finally {
+                appendLock.unlock();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        syncer.close();
+        cleaner.shutdown();
+        try {
+            cleaner.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
         lock.writeLock().lock();
         try {
-            if (walFile != null) {
+            if (writer != null) {
                 try {
-                    walFile.close();
+                    writer.sync();
+                    writer.close();
                 } catch (IOException e) {
                     logger.warning("Error closing WAL file: " + e.getMessage());
                 }
@@ -179,13 +789,69 @@ public class WAL {
     public interface RecoveryHandler {
         /**
          * Handle a recovered operation from the WAL.
-         * 
+         *
          * @param operation The operation type (PUT, DELETE)
          * @param key The key
          * @param value The value (can be null for DELETE operations)
-         * @param timestamp The timestamp when the operation was logged
+         * @param sequence The sequence number assigned when the operation was logged
          */
-        void handleOperation(String operation, String key, String value, long timestamp);
+        void handleOperation(String operation, String key, String value, long sequence);
+    }
+
+    private static class Segment {
+        final long baseSequence;
+        final Path path;
+
+        Segment(long baseSequence, Path path) {
+            this.baseSequence = baseSequence;
+            this.path = path;
+        }
+    }
+
+    private static class DecodedSegment {
+        final List<WALRecord> records;
+        final long bytes;
+
+        DecodedSegment(List<WALRecord> records, long bytes) {
+            this.records = records;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A record handed to {@link #submit}: the sequence number it was assigned
+     * and a future that completes with it once the record is durable, or fails
+     * if the record could not be written.
+     */
+    public static final class Submission {
+        private final long sequence;
+        private final CompletableFuture<Long> durable;
+
+        Submission(long sequence, CompletableFuture<Long> durable) {
+            this.sequence = sequence;
+            this.durable = durable;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public CompletableFuture<Long> getDurable() {
+            return durable;
+        }
+    }
+
+    private static class PendingRecord {
+        static final PendingRecord SHUTDOWN = new PendingRecord(-1, new byte[0]);
+
+        final long sequence;
+        final byte[] data;
+        final CompletableFuture<Long> future;
+
+        PendingRecord(long sequence, byte[] data) {
+            this.sequence = sequence;
+            this.data = data;
+            this.future = new CompletableFuture<>();
+        }
     }
-    
 }
@@ -0,0 +1,309 @@
+package com.kvstore.core;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary WAL record format (version 3).
+ *
+ * A WAL file starts with an 8 byte header (magic, version) followed by records:
+ * <pre>
+ *   int  bodyLength   length of everything after the crc
+ *   int  crc          CRC32C of the body
+ *   byte opCode       OP_PUT or OP_DELETE, plus FLAG_COMPRESSED
+ *   long sequence     monotonic sequence number
+ *   int  keyLength
+ *   byte[] key        UTF-8
+ *   byte[] value      UTF-8, the remainder of the body
+ * </pre>
+ * When FLAG_COMPRESSED is set the value is stored as its uncompressed length
+ * (int) followed by an LZ4 block. Version 2 files never set the flag.
+ * A record whose length runs past the end of the file or whose checksum does
+ * not match marks a torn tail; everything from that point on is discarded.
+ * A zeroed record header marks the end of a preallocated segment.
+ */
+final class WALRecord {
+    static final int MAGIC = 0x4B56574C; // "KVWL"
+    static final int VERSION = 3;
+    private static final int MIN_VERSION = 2;
+    static final int FILE_HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int MAX_BODY_SIZE = 64 * 1024 * 1024;
+
+    static final byte OP_PUT = 1;
+    static final byte OP_DELETE = 2;
+    static final byte FLAG_COMPRESSED = (byte) 0x80;
+    static final String PUT = "PUT";
+    static final String DELETE = "DELETE";
+
+    final String operation;
+    final long sequence;
+    final String key;
+    final String value;
+
+    private WALRecord(String operation, long sequence, String key, String value) {
+        this.operation = operation;
+        this.sequence = sequence;
+        this.key = key;
+        this.value = value;
+    }
+
+    /**
+     * Encode a record, compressing the value if it is at least
+     * {@code compressionThreshold} bytes long and compression actually saves space.
+     */
+    static byte[] encode(long sequence, String operation, String key, String value, int compressionThreshold) {
+        byte[] record = encodeUnsequenced(operation, key, value, compressionThreshold);
+        setSequence(record, sequence);
+        return record;
+    }
+
+    /**
+     * Encode a record whose sequence number is assigned later. Neither the
+     * sequence nor the checksum is filled in, so the record is invalid until
+     * {@link #setSequence} stamps it; the body is checksummed only once, then.
+     */
+    static byte[] encodeUnsequenced(String operation, String key, String value, int compressionThreshold) {
+        byte opCode = opCode(operation);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int valueLength = valueBytes.length;
+
+        if (valueBytes.length >= compressionThreshold) {
+            byte[] compressed = new byte[4 + LZ4Codec.maxCompressedLength(valueBytes.length)];
+            int compressedLength = LZ4Codec.compress(valueBytes, 0, valueBytes.length, compressed, 4);
+            if (4 + compressedLength < valueBytes.length) {
+                putInt(compressed, 0, valueBytes.length);
+                valueBytes = compressed;
+                valueLength = 4 + compressedLength;
+                opCode |= FLAG_COMPRESSED;
+            }
+        }
+        int bodyLength = 1 + 8 + 4 + keyBytes.length + valueLength;
+
+        byte[] record = new byte[RECORD_HEADER_SIZE + bodyLength];
+        int pos = RECORD_HEADER_SIZE;
+        record[pos++] = opCode;
+        pos += 8; // Sequence
+        pos = putInt(record, pos, keyBytes.length);
+        System.arraycopy(keyBytes, 0, record, pos, keyBytes.length);
+        pos += keyBytes.length;
+        System.arraycopy(valueBytes, 0, record, pos, valueLength);
+        putInt(record, 0, bodyLength);
+        return record;
+    }
+
+    /**
+     * Stamp a sequence number into an encoded record and compute its checksum,
+     * which covers the whole body and so costs a pass over it. This lets
+     * encoding and compression happen before the sequence is assigned; with
+     * group commit, records are stamped on the flusher thread rather than
+     * under the lock that appenders contend on.
+     */
+    static void setSequence(byte[] record, long sequence) {
+        putLong(record, RECORD_HEADER_SIZE + 1, sequence);
+        CRC32C crc = new CRC32C();
+        crc.update(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE);
+        putInt(record, 4, (int) crc.getValue());
+    }
+
+    static byte[] fileHeader() {
+        byte[] header = new byte[FILE_HEADER_SIZE];
+        putInt(header, 0, MAGIC);
+        putInt(header, 4, VERSION);
+        return header;
+    }
+
+    /**
+     * Check whether a file starts with the versioned WAL header.
+     */
+    static boolean hasFileHeader(Path path) throws IOException {
+        if (Files.size(path) < FILE_HEADER_SIZE) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    static byte opCode(String operation) {
+        if (PUT.equals(operation)) {
+            return OP_PUT;
+        } else if (DELETE.equals(operation)) {
+            return OP_DELETE;
+        }
+        throw new IllegalArgumentException("Unknown WAL operation: " + operation);
+    }
+
+    private static int putInt(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) (value >>> 24);
+        buffer[pos + 1] = (byte) (value >>> 16);
+        buffer[pos + 2] = (byte) (value >>> 8);
+        buffer[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static int putLong(byte[] buffer, int pos, long value) {
+        putInt(buffer, pos, (int) (value >>> 32));
+        return putInt(buffer, pos + 4, (int) value);
+    }
+
+    /**
+     * Sequential reader over a versioned WAL file that validates every record
+     * and stops at the first torn or corrupt one. The file is memory mapped and
+     * decoded in place, so reading costs no system call per record.
+     */
+    static final class Reader implements Closeable {
+        private final ByteBuffer buffer;
+        private final ByteBuffer view;
+        private final CRC32C crc;
+        private boolean tornTail;
+
+        Reader(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("WAL segment too large to map: " + path);
+                }
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            this.view = buffer.duplicate();
+            this.crc = new CRC32C();
+            if (buffer.remaining() < FILE_HEADER_SIZE) {
+                throw new IOException("Truncated WAL file header: " + path);
+            }
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            if (magic != MAGIC || version < MIN_VERSION || version > VERSION) {
+                throw new IOException("Unsupported WAL file " + path + " (version " + version + ")");
+            }
+        }
+
+        /**
+         * @return the next valid record, or null at the end of the log or at a torn tail
+         */
+        WALRecord next() {
+            if (tornTail || !buffer.hasRemaining()) {
+                return null;
+            }
+            int start = buffer.position();
+            if (buffer.remaining() < RECORD_HEADER_SIZE) {
+                // Zero fill too short for a header ends a preallocated segment
+                for (int i = start; i < buffer.limit(); i++) {
+                    if (buffer.get(i) != 0) {
+                        tornTail = true;
+                        break;
+                    }
+                }
+                return null;
+            }
+
+            int bodyLength = buffer.getInt(start);
+            int expectedCrc = buffer.getInt(start + 4);
+            if (bodyLength == 0 && expectedCrc == 0) {
+                // Zero-filled space preallocated by the memory-mapped writer
+                return null;
+            }
+            int bodyStart = start + RECORD_HEADER_SIZE;
+            if (bodyLength < 13 || bodyLength > MAX_BODY_SIZE || bodyLength > buffer.limit() - bodyStart) {
+                tornTail = true;
+                return null;
+            }
+
+            view.limit(bodyStart + bodyLength).position(bodyStart);
+            crc.reset();
+            crc.update(view);
+            if ((int) crc.getValue() != expectedCrc) {
+                tornTail = true;
+                return null;
+            }
+
+            byte flags = buffer.get(bodyStart);
+            byte opCode = (byte) (flags & ~FLAG_COMPRESSED);
+            String operation;
+            if (opCode == OP_PUT) {
+                operation = PUT;
+            } else if (opCode == OP_DELETE) {
+                operation = DELETE;
+            } else {
+                tornTail = true;
+                return null;
+            }
+            long sequence = buffer.getLong(bodyStart + 1);
+            int keyLength = buffer.getInt(bodyStart + 9);
+            if (keyLength < 0 || 13 + keyLength > bodyLength) {
+                tornTail = true;
+                return null;
+            }
+            String key = readString(bodyStart + 13, keyLength);
+            String value = null;
+            if (opCode == OP_PUT) {
+                int valueStart = bodyStart + 13 + keyLength;
+                int valueLength = bodyLength - 13 - keyLength;
+                if ((flags & FLAG_COMPRESSED) != 0) {
+                    value = readCompressed(valueStart, valueLength);
+                    if (value == null) {
+                        tornTail = true;
+                        return null;
+                    }
+                } else {
+                    value = readString(valueStart, valueLength);
+                }
+            }
+
+            buffer.position(bodyStart + bodyLength);
+            return new WALRecord(operation, sequence, key, value);
+        }
+
+        private String readString(int offset, int length) {
+            byte[] bytes = new byte[length];
+            view.limit(offset + length).position(offset);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the decompressed value, or null if the block is malformed
+         */
+        private String readCompressed(int offset, int length) {
+            if (length < 4) {
+                return null;
+            }
+            int originalLength = buffer.getInt(offset);
+            if (originalLength < 0 || originalLength > MAX_BODY_SIZE) {
+                return null;
+            }
+            byte[] compressed = new byte[length - 4];
+            view.limit(offset + length).position(offset + 4);
+            view.get(compressed);
+            byte[] original = new byte[originalLength];
+            try {
+                LZ4Codec.decompress(compressed, 0, compressed.length, original, 0, originalLength);
+            } catch (IOException e) {
+                return null;
+            }
+            return new String(original, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the end offset of the last valid record read so far
+         */
+        long getValidLength() {
+            return buffer.position();
+        }
+
+        boolean isTornTail() {
+            return tornTail;
+        }
+
+        @Override
+        public void close() {
+            // The mapping is released when the buffer is collected
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.kvstore.core;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Appends encoded records to a single WAL segment file.
+ */
+abstract class WALSegmentWriter {
+
+    /**
+     * Open a segment for appending after its last valid record.
+     *
+     * @param path the segment file, which must already hold the file header
+     * @param validLength end offset of the last intact record
+     * @param capacity the segment size to preallocate when memory mapped
+     * @param mapped whether to use a memory-mapped writer
+     */
+    static WALSegmentWriter open(Path path, long validLength, long capacity, boolean mapped) throws IOException {
+        return mapped ? new Mapped(path, validLength, capacity) : new Stream(path, validLength);
+    }
+
+    /**
+     * @return the offset the next record will be written at
+     */
+    abstract long position();
+
+    /**
+     * @return whether {@code length} more bytes fit without rolling
+     */
+    abstract boolean hasRoom(int length, long segmentSize);
+
+    abstract void write(byte[] buffer) throws IOException;
+
+    /**
+     * Make everything written so far durable.
+     */
+    abstract void sync() throws IOException;
+
+    /**
+     * Close the segment. Callers sync first if their durability policy
+     * requires it.
+     */
+    abstract void close() throws IOException;
+
+    /**
+     * Writes through a RandomAccessFile and fsyncs the file descriptor.
+     */
+    private static final class Stream extends WALSegmentWriter {
+        private final RandomAccessFile file;
+        private long position;
+        private volatile boolean closed;
+
+        Stream(Path path, long validLength) throws IOException {
+            this.file = new RandomAccessFile(path.toFile(), "rw");
+            // Drop a torn tail or space preallocated by the mapped writer
+            if (file.length() > validLength) {
+                file.setLength(validLength);
+                file.getFD().sync();
+            }
+            this.position = validLength;
+        }
+
+        @Override
+        long position() {
+            return position;
+        }
+
+        @Override
+        boolean hasRoom(int length, long segmentSize) {
+            return position == WALRecord.FILE_HEADER_SIZE || position + length <= segmentSize;
+        }
+
+        @Override
+        void write(byte[] buffer) throws IOException {
+            file.seek(position);
+            file.write(buffer);
+            position += buffer.length;
+        }
+
+        @Override
+        void sync() throws IOException {
+            // A background sync may race with rolling to the next segment,
+            // which syncs the old one itself before closing it
+            if (!closed) {
+                file.getFD().sync();
+            }
+        }
+
+        @Override
+        void close() throws IOException {
+            closed = true;
+            file.close();
+        }
+    }
+
+    /**
+     * Copies records into a MappedByteBuffer over a preallocated segment so an
+     * append costs no system calls; durability comes from forcing the mapping.
+     * Unused space reads as zeros, which the reader treats as the end of the log.
+     * A sealed segment keeps its preallocated size: the mapping cannot be
+     * released before it is garbage collected, and truncating a file that is
+     * still mapped is unsafe.
+     */
+    private static final class Mapped extends WALSegmentWriter {
+        private static final byte[] ZEROS = new byte[4096];
+        // MappedByteBuffer.force(int, int), which only exists from Java 13
+        private static final MethodHandle FORCE_RANGE = findForceRange();
+
+        private final MappedByteBuffer buffer;
+        private volatile int written; // End of the records copied in so far
+        private int forced; // End of the records known to be durable; guarded by this
+
+        Mapped(Path path, long validLength, long capacity) throws IOException {
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IOException("Memory-mapped WAL segments are limited to 2 GB");
+            }
+            // The mapping stays valid after the file is closed
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                if (file.length() < capacity) {
+                    file.setLength(capacity);
+                }
+                this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            }
+            this.buffer.position((int) validLength);
+
+            // Clear any torn records so stale bytes can never follow new ones.
+            // Records are appended in order, so walk their headers as the
+            // reader does until the zero-filled space after them.
+            int position = (int) validLength;
+            boolean scrubbed = false;
+            while (position < buffer.limit()) {
+                int end;
+                if (buffer.limit() - position < WALRecord.RECORD_HEADER_SIZE) {
+                    end = buffer.limit();
+                } else {
+                    int bodyLength = buffer.getInt(position);
+                    if (bodyLength == 0 && buffer.getInt(position + 4) == 0) {
+                        break;
+                    }
+                    int bodyStart = position + WALRecord.RECORD_HEADER_SIZE;
+                    // A garbled length clears just the header and moves on
+                    end = bodyLength > 0 && bodyLength <= buffer.limit() - bodyStart
+                            ? bodyStart + bodyLength : bodyStart;
+                }
+                clear(position, end);
+                scrubbed = true;
+                position = end;
+            }
+            if (scrubbed) {
+                buffer.force();
+            }
+            this.written = (int) validLength;
+            this.forced = (int) validLength;
+        }
+
+        private static MethodHandle findForceRange() {
+            try {
+                return MethodHandles.publicLookup().findVirtual(MappedByteBuffer.class, "force",
+                        MethodType.methodType(MappedByteBuffer.class, int.class, int.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                return null;
+            }
+        }
+
+        private void clear(int from, int to) {
+            ByteBuffer region = buffer.duplicate();
+            region.position(from);
+            while (region.position() < to) {
+                region.put(ZEROS, 0, Math.min(ZEROS.length, to - region.position()));
+            }
+        }
+
+        @Override
+        long position() {
+            return buffer.position();
+        }
+
+        @Override
+        boolean hasRoom(int length, long segmentSize) {
+            return length <= buffer.remaining();
+        }
+
+        @Override
+        void write(byte[] records) {
+            buffer.put(records);
+            written = buffer.position();
+        }
+
+        /**
+         * Force the records written since the last sync. Writers keep copying
+         * into the mapping meanwhile; whatever lands past the end read here is
+         * forced by the next sync. Before Java 13 there is no ranged force, so
+         * the whole mapping is forced; the kernel only writes its dirty pages
+         * back, but it still walks the entire preallocated segment.
+         */
+        @Override
+        synchronized void sync() throws IOException {
+            int end = written;
+            if (end <= forced) {
+                return;
+            }
+            if (FORCE_RANGE != null) {
+                try {
+                    MappedByteBuffer ignored = (MappedByteBuffer) FORCE_RANGE.invokeExact(buffer, forced, end - forced);
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new IOException("Failed to force WAL mapping", e);
+                }
+            } else {
+                buffer.force();
+            }
+            forced = end;
+        }
+
+        @Override
+        void close() {
+            // Nothing to release: trailing zeros are read as the end of the log
+        }
+    }
+}
@@ -1,17 +1,21 @@
 package com.kvstore.server;
+import com.kvstore.api.KVCursor;
 import com.kvstore.api.KVServer;
 import com.kvstore.api.KVStore;
 import com.kvstore.api.KVCluster;
+import com.kvstore.api.ScanOptions;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 public class KVStoreNetworkServer implements KVServer {
 
     private static final Logger logger = Logger.getLogger(KVStoreNetworkServer.class.getName());
+    private static final int MAX_RANGE_PAGE = 10000; // Largest page a paginated RANGE may request
     private final KVStore kvStore;
     private final KVCluster cluster;
     private final ExecutorService executorService;
@@ -56,6 +60,11 @@ public class KVStoreNetworkServer implements KVServer {
 
             String inputLine;
             while ((inputLine = in.readLine()) != null) {
+                String[] parts = inputLine.split("\\|");
+                if (parts.length == 3 && "RANGE".equalsIgnoreCase(parts[0])) {
+                    streamRange(parts, out, clientSocket);
+                    continue;
+                }
                 String response = processCommand(inputLine);
                 out.println(response);
             }
@@ -101,15 +110,11 @@ public class KVStoreNetworkServer implements KVServer {
                     return getResult.map(value -> "OK|" + value).orElse("NOT_FOUND");
 
                 case "RANGE":
-                    if (parts.length != 3) {
-                        return "ERROR|RANGE requires startKey and endKey";
-                    }
-                    var rangeResult = kvStore.readKeyRange(parts[1], parts[2]);
-                    StringBuilder rangeResponse = new StringBuilder("OK");
-                    for (var entry : rangeResult.entrySet()) {
-                        rangeResponse.append("|").append(entry.getKey()).append("=").append(entry.getValue());
+                    // The unpaged form is streamed by handleClient
+                    if (parts.length < 4 || parts.length > 5) {
+                        return "ERROR|RANGE requires startKey and endKey, and optionally limit and REVERSE";
                     }
-                    return rangeResponse.toString();
+                    return processRange(parts);
 
                 case "BATCH":
                     if (parts.length < 3 || parts.length % 2 != 1) {
@@ -190,6 +195,86 @@ public class KVStoreNetworkServer implements KVServer {
         }
     }
 
+    /**
+     * {@code RANGE|startKey|endKey} returns every entry in {@code [startKey, endKey)}
+     * as {@code OK|key=value|...}; the reply is written to the socket as the store
+     * cursor yields entries, so the range is never held in memory. Once {@code OK}
+     * is sent the reply can no longer become an error, so a failure part way
+     * resets the connection, which the client sees as an I/O error rather than a
+     * short result.
+     */
+    private void streamRange(String[] parts, PrintWriter out, Socket clientSocket) throws IOException {
+        KVCursor cursor;
+        try {
+            cursor = kvStore.scan(ScanOptions.range(parts[1], parts[2]));
+        } catch (RuntimeException e) {
+            logger.severe("Error processing command: " + e.getMessage());
+            out.println("ERROR|Internal server error");
+            return;
+        }
+        try (cursor) {
+            out.print("OK");
+            while (cursor.hasNext()) {
+                Map.Entry<String, String> entry = cursor.next();
+                out.print("|");
+                out.print(entry.getKey());
+                out.print("=");
+                out.print(entry.getValue());
+            }
+            out.println();
+        } catch (RuntimeException e) {
+            clientSocket.setSoLinger(true, 0);
+            throw new IOException("RANGE failed after its reply started: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * {@code RANGE|startKey|endKey|limit[|REVERSE]} returns one page of at most
+     * limit entries; if the range holds more, the response is
+     * {@code MORE|resumeKey|key=value|...}, and the next page is the same command
+     * with resumeKey as the startKey, or as the endKey when reversed. Entries are
+     * read from a store cursor, so only the page being sent is held.
+     */
+    private String processRange(String[] parts) {
+        ScanOptions options = ScanOptions.range(parts[1], parts[2]);
+        int limit;
+        try {
+            limit = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException e) {
+            return "ERROR|RANGE limit must be a number";
+        }
+        if (limit <= 0 || limit > MAX_RANGE_PAGE) {
+            return "ERROR|RANGE limit must be between 1 and " + MAX_RANGE_PAGE;
+        }
+        // Read one entry past the page to learn whether another page follows
+        options.setLimit(limit + 1);
+        if (parts.length == 5) {
+            if (!"REVERSE".equalsIgnoreCase(parts[4])) {
+                return "ERROR|Unknown RANGE option: " + parts[4];
+            }
+            options.setReverse(true);
+        }
+
+        StringBuilder entries = new StringBuilder();
+        String lastKey = null;
+        int count = 0;
+        try (KVCursor cursor = kvStore.scan(options)) {
+            while (cursor.hasNext()) {
+                Map.Entry<String, String> entry = cursor.next();
+                if (count == limit) {
+                    // Forward pages resume at the first key not sent; reverse pages
+                    // resume below the last key sent, as the end bound is exclusive
+                    String resumeKey = options.isReverse() ? lastKey : entry.getKey();
+                    return "MORE|" + resumeKey + entries;
+                }
+                entries.append("|").append(entry.getKey()).append("=").append(entry.getValue());
+                lastKey = entry.getKey();
+                count++;
+            }
+        }
+        return "OK" + entries;
+    }
+
     @Override
     public void stop() {
         running = false;
@@ -53,4 +53,10 @@ public class KVClientTest {
         // This will likely fail since no server is running, but shouldn't throw an exception
         assertFalse(result);
     }
+    
+    @Test
+    void testRangeWithoutServer() {
+        // Test range when no server is running (should fail gracefully)
+        assertNull(client.range("a", "z"));
+    }
 }
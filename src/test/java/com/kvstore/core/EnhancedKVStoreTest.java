@@ -1,15 +1,31 @@
 package com.kvstore.core;
 
+import com.kvstore.api.KVCursor;
+import com.kvstore.api.ScanOptions;
+
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.io.TempDir;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -153,6 +169,318 @@ public class EnhancedKVStoreTest {
         }
     }
     
+    @Test
+    void testWALRecoveryIgnoresTornTail() throws IOException {
+        // Test that a partially written record at the end of the WAL is discarded
+        kvStore.put("key1", "value1");
+        kvStore.put("key2", "value2");
+        
+        // Simulate a crash in the middle of writing a record; the old instance is abandoned
+        Files.write(lastWALSegment(), new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+        
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        assertEquals("value1", kvStore.read("key1").orElse(null));
+        assertEquals("value2", kvStore.read("key2").orElse(null));
+        
+        // New records must land after the last intact one
+        assertTrue(kvStore.put("key3", "value3"));
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        assertEquals("value1", kvStore.read("key1").orElse(null));
+        assertEquals("value3", kvStore.read("key3").orElse(null));
+    }
+    
+    @Test
+    void testFlushedWALSegmentsAreRemoved() throws Exception {
+        // Test that the WAL rolls into segments and drops the ones covered by SSTables
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString(), new StoreOptions().setWalSegmentSize(4096));
+        
+        for (int i = 0; i < 500; i++) {
+            kvStore.put("key" + i, "value" + i);
+        }
+        assertTrue(countWALSegments() > 1);
+        
+        kvStore.close();
+        assertEquals(1, countWALSegments());
+        
+        kvStore = new EnhancedKVStore(tempDir.toString(), new StoreOptions().setWalSegmentSize(4096));
+        assertEquals("value0", kvStore.read("key0").orElse(null));
+        assertEquals("value499", kvStore.read("key499").orElse(null));
+        assertEquals(1, kvStore.getStats().getSSTableCount());
+    }
+    
+    @Test
+    void testMemoryMappedWALRecovery() throws IOException {
+        // Test that a preallocated, memory-mapped WAL replays and can be reopened either way
+        kvStore.close();
+        StoreOptions mapped = new StoreOptions().setWalMemoryMapped(true).setWalSegmentSize(64 * 1024);
+        kvStore = new EnhancedKVStore(tempDir.toString(), mapped);
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(kvStore.put("key" + i, "value" + i));
+        }
+        assertTrue(countWALSegments() > 1);
+        
+        // Abandon the instance without closing to force WAL replay
+        kvStore = new EnhancedKVStore(tempDir.toString(), mapped);
+        assertEquals(2000, kvStore.getStats().getWALReplayRecords());
+        assertEquals("value0", kvStore.read("key0").orElse(null));
+        assertEquals("value1999", kvStore.read("key1999").orElse(null));
+        assertTrue(kvStore.put("extra", "mapped"));
+        
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        assertEquals("value1999", kvStore.read("key1999").orElse(null));
+        assertEquals("mapped", kvStore.read("extra").orElse(null));
+    }
+    
+    @Test
+    void testMemoryMappedWALClearsTornRecords() throws IOException {
+        // Test that records after a torn one cannot resurface behind new writes
+        kvStore.close();
+        StoreOptions mapped = new StoreOptions().setWalMemoryMapped(true).setWalSegmentSize(64 * 1024);
+        kvStore = new EnhancedKVStore(tempDir.toString(), mapped);
+        assertTrue(kvStore.put("stale1", "x"));
+        assertTrue(kvStore.put("stale2", "y"));
+        assertTrue(kvStore.put("stale3", "z"));
+        
+        // Corrupt the first record's key so its checksum fails; the rest stay intact
+        Path segment = lastWALSegment();
+        byte[] bytes = Files.readAllBytes(segment);
+        int keyOffset = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("stale1");
+        bytes[keyOffset] = 'S';
+        Files.write(segment, bytes);
+        
+        kvStore = new EnhancedKVStore(tempDir.toString(), mapped);
+        assertFalse(kvStore.read("stale2").isPresent());
+        
+        // A record of the same length ends exactly where the next stale one began
+        assertTrue(kvStore.put("fresh1", "w"));
+        kvStore = new EnhancedKVStore(tempDir.toString(), mapped);
+        assertEquals("w", kvStore.read("fresh1").orElse(null));
+        assertFalse(kvStore.read("stale2").isPresent());
+        assertFalse(kvStore.read("stale3").isPresent());
+    }
+    
+    @Test
+    void testIntervalDurability() throws IOException {
+        // Test that interval-synced writes are reported in stats and survive a clean restart
+        kvStore.close();
+        StoreOptions options = new StoreOptions().setDurability(DurabilityPolicy.interval(50, 1024 * 1024));
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        assertEquals(DurabilityPolicy.Mode.INTERVAL, kvStore.getStats().getDurability().getMode());
+        
+        for (int i = 0; i < 100; i++) {
+            assertTrue(kvStore.put("key" + i, "value" + i));
+        }
+        kvStore.close();
+        
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        assertEquals("value99", kvStore.read("key99").orElse(null));
+    }
+    
+    @Test
+    void testCompressedWALRecovery() throws IOException {
+        // Test that large values are compressed in the WAL and restored on replay
+        kvStore.close();
+        StoreOptions options = new StoreOptions().setWalCompression(true);
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        long initialSize = kvStore.getStats().getWALSize();
+        
+        String json = "{\"name\":\"value\",\"tags\":[\"a\",\"b\",\"c\"]}".repeat(200);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(kvStore.put("doc" + i, json + i));
+        }
+        assertTrue(kvStore.getStats().getWALSize() - initialSize < 20L * json.length() / 4);
+        
+        // Abandon the instance without closing to force WAL replay
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        assertEquals(20, kvStore.getStats().getWALReplayRecords());
+        assertEquals(json + 7, kvStore.read("doc7").orElse(null));
+    }
+    
+    @Test
+    void testCorruptSealedWALSegmentFailsRecovery() throws IOException {
+        // Test that corruption before the last segment is an error, not a gap in the history
+        kvStore.close();
+        StoreOptions options = new StoreOptions().setWalSegmentSize(4096);
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(kvStore.put("key" + i, "value" + i));
+        }
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(tempDir)) {
+            segments = files.filter(p -> p.getFileName().toString().matches("wal-\\d+\\.log"))
+                            .sorted()
+                            .collect(Collectors.toList());
+        }
+        assertTrue(segments.size() > 2);
+        
+        // Flip a byte in the body of the first record of a middle segment
+        Path middle = segments.get(segments.size() / 2);
+        byte[] bytes = Files.readAllBytes(middle);
+        bytes[20] ^= 0x55;
+        Files.write(middle, bytes);
+        
+        // Abandon the instance without closing so the WAL is replayed
+        kvStore = null;
+        assertThrows(IOException.class, () -> new EnhancedKVStore(tempDir.toString(), options));
+    }
+    
+    private Path lastWALSegment() throws IOException {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.filter(p -> p.getFileName().toString().matches("wal-\\d+\\.log"))
+                        .max(Comparator.naturalOrder())
+                        .orElseThrow();
+        }
+    }
+    
+    private long countWALSegments() throws IOException {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.filter(p -> p.getFileName().toString().matches("wal-\\d+\\.log")).count();
+        }
+    }
+    
+    @Test
+    void testFailedWALWriteIsNeverPersisted() throws IOException {
+        // Test that once a WAL batch fails the store refuses writes and the
+        // failed write never survives into an SSTable
+        kvStore.close();
+        StoreOptions options = new StoreOptions().setWalSegmentSize(4096);
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        assertTrue(kvStore.put("before", "value"));
+        
+        // Occupy the names of the next segments so rolling the WAL fails
+        List<Path> blockers = new ArrayList<>();
+        long next = kvStore.getLastSequence() + 1;
+        for (long sequence = next; sequence < next + 200; sequence++) {
+            blockers.add(Files.createDirectory(tempDir.resolve(String.format("wal-%020d.log", sequence))));
+        }
+        String failedKey = null;
+        for (int i = 0; i < 200 && failedKey == null; i++) {
+            if (!kvStore.put("key" + i, "value" + i)) {
+                failedKey = "key" + i;
+            }
+        }
+        assertNotNull(failedKey);
+        // A write is readable only once its WAL batch is durable
+        assertFalse(kvStore.read(failedKey).isPresent());
+        assertFalse(kvStore.put("after", "value"));
+        assertFalse(kvStore.delete("before"));
+        assertEquals("value", kvStore.read("before").orElse(null));
+        
+        EnhancedKVStore store = kvStore;
+        kvStore = null;
+        assertTimeoutPreemptively(Duration.ofSeconds(10), store::close);
+        for (Path blocker : blockers) {
+            Files.delete(blocker);
+        }
+        
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        assertEquals("value", kvStore.read("before").orElse(null));
+        assertFalse(kvStore.read(failedKey).isPresent());
+        assertFalse(kvStore.read("after").isPresent());
+        assertTrue(kvStore.put("after", "value"));
+        assertEquals("value", kvStore.read("after").orElse(null));
+    }
+    
+    @Test
+    void testCloseDoesNotHangOnFailingFlush() throws IOException {
+        // Test that close gives up on a flush that keeps failing instead of
+        // retrying it forever
+        kvStore.close();
+        Path storeDir = tempDir.resolve("store");
+        kvStore = new EnhancedKVStore(storeDir.toString());
+        kvStore.put("key1", "value1");
+        
+        // Replace the directory with a file so every SSTable write fails
+        try (Stream<Path> files = Files.walk(storeDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+        Files.createFile(storeDir);
+        
+        EnhancedKVStore store = kvStore;
+        kvStore = null;
+        assertTimeoutPreemptively(Duration.ofSeconds(10), store::close);
+    }
+    
+    @Test
+    void testConcurrentPutsAreDurable() throws Exception {
+        // Test that concurrent writers sharing group commits all survive a restart
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int writer = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    assertTrue(kvStore.put("w" + writer + "_" + i, "value" + i));
+                }
+            });
+            writers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        
+        for (int t = 0; t < 8; t++) {
+            for (int i = 0; i < 50; i++) {
+                assertEquals("value" + i, kvStore.read("w" + t + "_" + i).orElse(null));
+            }
+        }
+    }
+    
+    @Test
+    void testReadsDuringFlushSeeEveryWrite() throws Exception {
+        // Test that lock-free readers never miss a key while the memtable is flushed
+        kvStore.close();
+        long budget = 256 * 1024;
+        // No compaction, so every flush leaves its own SSTable
+        kvStore = new EnhancedKVStore(tempDir.toString(), new StoreOptions()
+                .setMemtableSize(budget).setLevel0CompactionTrigger(Integer.MAX_VALUE));
+        kvStore.put("stable", "value");
+        kvStore.put("gone", "value");
+        kvStore.delete("gone");
+        
+        // Mirror the heap memtable's accounting: 128 bytes per entry plus two per char
+        long bytes = (128 + 2 * "stable".length() + 2 * "value".length()) + (128 + 2 * "gone".length());
+        int expectedSSTables = 0;
+        
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger misses = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                if (!"value".equals(kvStore.read("stable").orElse(null))
+                        || kvStore.readKeyRange("s", "t").size() != 1) {
+                    misses.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 10001; i++) {
+            String key = "key" + i;
+            String value = "value" + i;
+            kvStore.put(key, value);
+            bytes += 128 + 2 * key.length() + 2 * value.length();
+            if (bytes >= budget) {
+                expectedSSTables++;
+                bytes = 0;
+            }
+        }
+        kvStore.flush();
+        if (bytes > 0) {
+            expectedSSTables++;
+        }
+        done.set(true);
+        reader.join();
+        
+        assertEquals(0, misses.get());
+        assertTrue(expectedSSTables > 1);
+        assertEquals(expectedSSTables, kvStore.getStats().getSSTableCount());
+        assertEquals(0, kvStore.getStats().getMemtableSize());
+        assertFalse(kvStore.read("gone").isPresent());
+    }
+    
     @Test
     void testMemtableFlushing() {
         // Test that memtable gets flushed after threshold
@@ -167,6 +495,60 @@ public class EnhancedKVStoreTest {
         assertEquals("value10000", result.get());
     }
     
+    @Test
+    void testMemtableFlushesOnByteBudget() throws IOException {
+        // Test that large values trigger flushes by size rather than by count
+        kvStore.close();
+        long budget = 1024 * 1024;
+        kvStore = new EnhancedKVStore(tempDir.toString(), new StoreOptions().setMemtableSize(budget));
+        
+        String value = "x".repeat(50 * 1024);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(kvStore.put("big" + i, value));
+        }
+        kvStore.flush();
+        kvStore.put("small", "value");
+        
+        EnhancedKVStore.StoreStats stats = kvStore.getStats();
+        assertTrue(stats.getSSTableCount() >= 1);
+        assertEquals(1, stats.getMemtableSize());
+        assertTrue(stats.getMemtableBytes() > 0 && stats.getMemtableBytes() < budget);
+        assertEquals(value, kvStore.read("big0").orElse(null));
+        assertEquals(value, kvStore.read("big39").orElse(null));
+    }
+    
+    @Test
+    void testOffHeapMemtableMatchesSortedModel() throws IOException {
+        // Test that the off-heap memtable orders, overwrites and deletes like a TreeMap
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString(), new StoreOptions().setMemtableOffHeap(true));
+        
+        java.util.TreeMap<String, String> model = new TreeMap<>();
+        java.util.Random random = new java.util.Random(7);
+        String[] prefixes = {"a", "b", "\u00e9", "\u4e2d", "\ud83d\ude00"};
+        for (int i = 0; i < 5000; i++) {
+            String key = prefixes[random.nextInt(prefixes.length)] + random.nextInt(1000);
+            if (random.nextInt(5) == 0) {
+                assertTrue(kvStore.delete(key));
+                model.remove(key);
+            } else {
+                String value = "v" + i + "x".repeat(random.nextInt(200));
+                assertTrue(kvStore.put(key, value));
+                model.put(key, value);
+            }
+        }
+        
+        for (String key : new String[] {"a1", "b999", "\u00e9500", "\u4e2d7", "missing"}) {
+            assertEquals(Optional.ofNullable(model.get(key)), kvStore.read(key));
+        }
+        assertEquals(model.subMap("a", "\u4e2d"), kvStore.readKeyRange("a", "\u4e2d"));
+        assertEquals(model.size(), kvStore.getStats().getMemtableSize());
+        
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString(), new StoreOptions().setMemtableOffHeap(true));
+        assertEquals(model.subMap("b", "c"), kvStore.readKeyRange("b", "c"));
+    }
+    
     @Test
     void testCompaction() {
         // Test forced compaction
@@ -184,6 +566,435 @@ public class EnhancedKVStoreTest {
         assertEquals("value50", result.get());
     }
     
+    @Test
+    void testCompactionKeepsKeysAboveLastChar() throws IOException {
+        // Test that compaction carries over keys that sort at or after U+FFFF
+        String[] keys = {"\uffff", "\uffffz", "\uffff\ud83d\ude00"};
+        for (String key : keys) {
+            kvStore.put(key, "high");
+            kvStore.put("low", "value");
+            kvStore.flush();
+        }
+        kvStore.compact();
+        
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        for (String key : keys) {
+            assertEquals("high", kvStore.read(key).orElse(null));
+        }
+        assertEquals("value", kvStore.read("low").orElse(null));
+    }
+    
+    @Test
+    void testCompactionSplitsOutputAtTargetSize() throws IOException {
+        // Test that compaction merges overlapping tables into size-bounded outputs
+        kvStore.close();
+        StoreOptions options = new StoreOptions().setSstableTargetSize(16 * 1024);
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        for (int round = 0; round < 3; round++) {
+            for (int i = round; i < 3000; i += 2) {
+                kvStore.put(String.format("key%05d", i), "value" + i + "-" + round);
+            }
+            kvStore.flush();
+        }
+        assertEquals(3, kvStore.getStats().getSSTableCount());
+
+        kvStore.compact();
+        EnhancedKVStore.StoreStats stats = kvStore.getStats();
+        assertTrue(stats.getSSTableCount() > 1);
+        assertEquals(3000, stats.getTotalEntries());
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(stats.getSSTableCount(), files.filter(p -> p.toString().endsWith(".dat")).count());
+        }
+
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        for (int i = 0; i < 3000; i++) {
+            int round = i % 2 == 1 ? 1 : i == 0 ? 0 : 2;
+            assertEquals("value" + i + "-" + round, kvStore.read(String.format("key%05d", i)).orElse(null));
+        }
+        assertEquals(3000, kvStore.readKeyRange("key00000", "key99999").size());
+    }
+
+    @Test
+    void testBackgroundCompactionKeepsReadsServing() throws Exception {
+        // Test that flushing past the table limit compacts in the background
+        // while reads keep seeing every key
+        for (int round = 0; round < 12; round++) {
+            for (int i = 0; i < 100; i++) {
+                kvStore.put("key" + i, "value" + i + "-" + round);
+            }
+            kvStore.flush();
+            assertEquals("value42-" + round, kvStore.read("key42").orElse(null));
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (kvStore.getStats().getSSTableCount() > 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(kvStore.getStats().getSSTableCount() <= 10);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i + "-11", kvStore.read("key" + i).orElse(null));
+        }
+
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        assertEquals("value99-11", kvStore.read("key99").orElse(null));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(kvStore.getStats().getSSTableCount(),
+                         files.filter(p -> p.toString().endsWith(".dat")).count());
+        }
+    }
+
+    @Test
+    void testLeveledCompactionMovesTablesDownLevels() throws Exception {
+        // Test that flushed tables are pushed into deeper, size-bounded levels
+        // and that each table's level survives a restart
+        kvStore.close();
+        StoreOptions options = new StoreOptions()
+                .setSstableTargetSize(4 * 1024)
+                .setLevel0CompactionTrigger(2)
+                .setLevelBaseSize(16 * 1024)
+                .setLevelSizeMultiplier(2);
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        for (int round = 0; round < 20; round++) {
+            for (int i = round * 200; i < round * 200 + 400; i++) {
+                kvStore.put(String.format("key%05d", i), "value" + i + "-" + round);
+            }
+            kvStore.flush();
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (kvStore.getStats().getPendingCompactions() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        EnhancedKVStore.StoreStats stats = kvStore.getStats();
+        int[] levels = stats.getLevelCounts();
+        assertEquals(0, stats.getPendingCompactions());
+        assertTrue(levels[0] < 2);
+        assertTrue(levels[2] > 0, "Expected data below level 1: " + stats);
+        assertEquals(4200, stats.getTotalEntries());
+        for (int i = 0; i < 4200; i++) {
+            int round = Math.min(i / 200, 19);
+            assertEquals("value" + i + "-" + round, kvStore.read(String.format("key%05d", i)).orElse(null));
+        }
+
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        assertArrayEquals(levels, kvStore.getStats().getLevelCounts());
+        assertEquals("value4199-19", kvStore.read("key04199").orElse(null));
+    }
+
+    @Test
+    void testSizeTieredCompactionMergesSimilarTables() throws Exception {
+        // Test that size-tiered compaction keeps one level and merges buckets
+        // of similar tables into single, unsplit outputs
+        kvStore.close();
+        StoreOptions options = new StoreOptions()
+                .setCompactionStyle(StoreOptions.CompactionStyle.SIZE_TIERED)
+                .setSizeTieredThresholds(4, 32)
+                .setSstableTargetSize(4 * 1024);
+        kvStore = new EnhancedKVStore(tempDir.toString(), options);
+        for (int round = 0; round < 16; round++) {
+            for (int i = round * 200; i < round * 200 + 400; i++) {
+                kvStore.put(String.format("key%05d", i), "value" + i + "-" + round);
+            }
+            kvStore.flush();
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (kvStore.getStats().getPendingCompactions() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        EnhancedKVStore.StoreStats stats = kvStore.getStats();
+        assertEquals(1, stats.getLevelCounts().length);
+        assertTrue(stats.getSSTableCount() < 4, "Expected buckets to be merged: " + stats);
+        for (int i = 0; i < 3400; i++) {
+            int round = Math.min(i / 200, 15);
+            assertEquals("value" + i + "-" + round, kvStore.read(String.format("key%05d", i)).orElse(null));
+        }
+
+        // Reopening with the leveled strategy regroups the same tables
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString(), new StoreOptions());
+        assertEquals(LeveledCompactionStrategy.MAX_LEVELS, kvStore.getStats().getLevelCounts().length);
+        assertEquals(stats.getSSTableCount(), kvStore.getStats().getLevelCounts()[0]);
+        assertEquals("value3399-15", kvStore.read("key03399").orElse(null));
+        assertEquals("value0-0", kvStore.read("key00000").orElse(null));
+    }
+
+    @Test
+    void testDeleteSurvivesFlushAndCompaction() throws IOException {
+        // Test that a flushed delete hides the value in an older SSTable until
+        // compaction reaches the bottom and drops both
+        kvStore.put("keep", "value");
+        kvStore.put("gone", "old");
+        kvStore.flush();
+        assertTrue(kvStore.delete("gone"));
+        kvStore.flush();
+        assertEquals(2, kvStore.getStats().getSSTableCount());
+        assertFalse(kvStore.read("gone").isPresent());
+        assertEquals(Map.of("keep", "value"), kvStore.readKeyRange("a", "z"));
+
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        assertFalse(kvStore.read("gone").isPresent());
+        assertEquals(Map.of("keep", "value"), kvStore.readKeyRange("a", "z"));
+
+        kvStore.compact();
+        assertFalse(kvStore.read("gone").isPresent());
+        assertEquals("value", kvStore.read("keep").orElse(null));
+        assertEquals(1, kvStore.getStats().getTotalEntries());
+    }
+
+    @Test
+    void testRangeMergesMemtableAndSSTables() {
+        // Test that a range merges the memtable and every SSTable, with the
+        // newest entry for each key winning and deletes hiding older values
+        for (int i = 0; i < 1000; i++) {
+            kvStore.put(String.format("key%04d", i), "v0");
+        }
+        kvStore.flush();
+        for (int i = 0; i < 1000; i += 3) {
+            kvStore.put(String.format("key%04d", i), "v1");
+        }
+        kvStore.flush();
+        for (int i = 0; i < 1000; i += 5) {
+            kvStore.delete(String.format("key%04d", i));
+        }
+        for (int i = 0; i < 1000; i += 7) {
+            kvStore.put(String.format("key%04d", i), "v2");
+        }
+
+        Map<String, String> expected = new TreeMap<>();
+        for (int i = 100; i < 130; i++) {
+            String value = i % 7 == 0 ? "v2" : i % 5 == 0 ? null : i % 3 == 0 ? "v1" : "v0";
+            if (value != null) {
+                expected.put(String.format("key%04d", i), value);
+            }
+        }
+        Map<String, String> range = kvStore.readKeyRange("key0100", "key0130");
+        assertEquals(expected, range);
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(range.keySet()));
+    }
+
+    @Test
+    void testScanStreamsWithLimitReverseAndPrefix() {
+        // Test that a cursor sees the same merged view as readKeyRange, in
+        // either direction, across SSTable blocks and the memtable
+        for (int i = 0; i < 1000; i++) {
+            kvStore.put(String.format("key%04d", i), "v0");
+        }
+        kvStore.flush();
+        for (int i = 0; i < 1000; i += 5) {
+            kvStore.delete(String.format("key%04d", i));
+        }
+        for (int i = 0; i < 1000; i += 7) {
+            kvStore.put(String.format("key%04d", i), "v1");
+        }
+
+        List<String> expected = new ArrayList<>(kvStore.readKeyRange("key0100", "key0900").keySet());
+        assertEquals(expected, scanKeys(ScanOptions.range("key0100", "key0900")));
+        List<String> reversed = new ArrayList<>(expected);
+        Collections.reverse(reversed);
+        assertEquals(reversed, scanKeys(ScanOptions.range("key0100", "key0900").setReverse(true)));
+
+        assertEquals(expected.subList(0, 10), scanKeys(ScanOptions.range("key0100", "key0900").setLimit(10)));
+        assertEquals(reversed.subList(0, 10),
+                scanKeys(ScanOptions.range("key0100", "key0900").setLimit(10).setReverse(true)));
+
+        List<String> prefixed = scanKeys(ScanOptions.prefix("key012"));
+        assertEquals(new ArrayList<>(kvStore.readKeyRange("key0120", "key0130").keySet()), prefixed);
+        assertFalse(prefixed.contains("key0125"));
+        assertEquals(List.of("key0126", "key0127"), scanKeys(ScanOptions.prefix("key012").setRange("key0126", "key0128")));
+
+        try (KVCursor cursor = kvStore.scan(ScanOptions.range("key0145", "key0146"))) {
+            assertFalse(cursor.hasNext());
+        }
+    }
+
+    private List<String> scanKeys(ScanOptions options) {
+        List<String> keys = new ArrayList<>();
+        try (KVCursor cursor = kvStore.scan(options)) {
+            cursor.forEachRemaining(entry -> keys.add(entry.getKey()));
+        }
+        return keys;
+    }
+
+    @Test
+    void testSequenceNumbersSurviveFlushAndRestart() throws IOException {
+        // Test that sequences keep increasing after the WAL is flushed away
+        // and that the newest value wins across SSTables
+        kvStore.put("key", "old");
+        long firstSequence = kvStore.getLastSequence();
+        kvStore.close();
+        
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        kvStore.put("key", "new");
+        assertTrue(kvStore.getLastSequence() > firstSequence);
+        kvStore.close();
+        
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        assertEquals(2, kvStore.getStats().getSSTableCount());
+        assertEquals("new", kvStore.read("key").orElse(null));
+        kvStore.compact();
+        assertEquals("new", kvStore.read("key").orElse(null));
+    }
+    
+    @Test
+    void testManifestIsReplacedAtomicallyAndChecksummed() throws IOException {
+        // Test that the manifest leaves no temporary file behind and that a
+        // damaged one is refused instead of silently dropping tables
+        kvStore.put("key", "value");
+        kvStore.close();
+        assertFalse(Files.exists(tempDir.resolve("sst_manifest.tmp")));
+        
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        assertEquals("value", kvStore.read("key").orElse(null));
+        kvStore.close();
+        kvStore = null;
+        
+        byte[] manifest = Files.readAllBytes(tempDir.resolve("sst_manifest"));
+        manifest[manifest.length - 5] ^= 0x01;
+        Files.write(tempDir.resolve("sst_manifest"), manifest);
+        assertThrows(IOException.class, () -> new EnhancedKVStore(tempDir.toString()));
+    }
+    
+    @Test
+    void testLegacySSTableIsReadable() throws IOException {
+        // Test that an SSTable written before sequence numbers still loads
+        kvStore.close();
+        long fileId = 1700000000000L;
+        writeLegacySSTable(fileId, "legacy", "value");
+        try (DataOutputStream out = new DataOutputStream(
+                Files.newOutputStream(tempDir.resolve("sst_manifest")))) {
+            out.writeInt(1);
+            out.writeLong(fileId);
+        }
+        
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        assertEquals("value", kvStore.read("legacy").orElse(null));
+        
+        kvStore.put("legacy", "updated");
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        kvStore.compact();
+        assertEquals("updated", kvStore.read("legacy").orElse(null));
+    }
+    
+    @Test
+    void testBlockSSTableUsesSparseIndexAndDetectsCorruption() throws IOException {
+        // Test that SSTables index blocks rather than keys and checksum each block
+        for (int i = 0; i < 2000; i++) {
+            kvStore.put(String.format("key%05d", i), "value" + i);
+        }
+        kvStore.close();
+        kvStore = null;
+        
+        long fileId;
+        try (Stream<Path> files = Files.list(tempDir)) {
+            String name = files.map(p -> p.getFileName().toString())
+                .filter(n -> n.startsWith("sst_") && n.endsWith(".dat"))
+                .findFirst().orElseThrow();
+            fileId = Long.parseLong(name.substring(4, name.length() - 4));
+        }
+        SSTable table = SSTable.load(tempDir.toString(), fileId);
+        assertEquals(2000, table.getEntryCount());
+        assertTrue(table.getBlockCount() > 1 && table.getBlockCount() < 2000 / 10);
+        assertEquals("value1234", table.get("key01234"));
+        assertNull(table.get("key01234x"));
+        assertEquals(100, table.getRange("key00100", "key00200").size());
+        
+        // Flip a byte in the middle of the data file
+        Path dataPath = table.getDataPath();
+        byte[] data = Files.readAllBytes(dataPath);
+        data[data.length / 2] ^= 0x55;
+        Files.write(dataPath, data);
+        assertThrows(IOException.class, table::getAllVersioned);
+        
+        table.close();
+        assertThrows(IOException.class, () -> table.getVersioned("key00001"));
+    }
+
+    @Test
+    void testBloomFilterSkipsAbsentKeys() throws IOException {
+        // Test that lookups of absent keys are answered by the SSTable's Bloom filter
+        for (int i = 0; i < 1000; i++) {
+            kvStore.put("key" + i, "value" + i);
+        }
+        kvStore.flush();
+        assertTrue(kvStore.getStats().getSSTableCount() >= 1);
+
+        // Absent keys inside the table's key range, so only the filter can rule them out
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(kvStore.read("key" + i + "-missing").isEmpty());
+        }
+        long negatives = kvStore.getStats().getBloomFilterNegatives();
+        assertTrue(negatives > 900, "Expected most misses to be filtered, got " + negatives);
+        for (int i = 0; i < 1000; i += 7) {
+            assertEquals("value" + i, kvStore.read("key" + i).orElse(null));
+        }
+
+        // A damaged filter is ignored rather than making the table unreadable
+        kvStore.close();
+        try (Stream<Path> files = Files.list(tempDir)) {
+            for (Path filter : files.filter(p -> p.toString().endsWith(".bf")).toArray(Path[]::new)) {
+                Files.write(filter, new byte[] {1, 2, 3});
+            }
+        }
+        kvStore = new EnhancedKVStore(tempDir.toString());
+        assertEquals("value500", kvStore.read("key500").orElse(null));
+        assertTrue(kvStore.read("missing500").isEmpty());
+    }
+
+    @Test
+    void testBlockCacheServesRepeatedReads() throws IOException {
+        // Test that repeated SSTable reads hit the block cache and a small cache evicts
+        kvStore.close();
+        kvStore = new EnhancedKVStore(tempDir.toString(), new StoreOptions().setBlockCacheSize(32 * 1024));
+        for (int i = 0; i < 5000; i++) {
+            kvStore.put(String.format("key%05d", i), "value" + i);
+        }
+        kvStore.flush();
+
+        assertEquals("value42", kvStore.read("key00042").orElse(null));
+        EnhancedKVStore.StoreStats before = kvStore.getStats();
+        assertTrue(before.getBlockCacheMisses() > 0);
+        
+        // A neighbouring key lives in the same block
+        assertEquals("value43", kvStore.read("key00043").orElse(null));
+        EnhancedKVStore.StoreStats after = kvStore.getStats();
+        assertEquals(before.getBlockCacheMisses(), after.getBlockCacheMisses());
+        assertTrue(after.getBlockCacheHits() > before.getBlockCacheHits());
+
+        for (int i = 0; i < 5000; i += 10) {
+            assertEquals("value" + i, kvStore.read(String.format("key%05d", i)).orElse(null));
+        }
+        assertTrue(kvStore.getStats().getBlockCacheEvictions() > 0);
+    }
+
+    private void writeLegacySSTable(long fileId, String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        try (DataOutputStream data = new DataOutputStream(
+                Files.newOutputStream(tempDir.resolve("sst_" + fileId + ".dat")))) {
+            data.writeInt(keyBytes.length);
+            data.write(keyBytes);
+            data.writeInt(valueBytes.length);
+            data.write(valueBytes);
+        }
+        try (DataOutputStream index = new DataOutputStream(
+                Files.newOutputStream(tempDir.resolve("sst_" + fileId + ".idx")))) {
+            index.writeLong(fileId);
+            index.writeLong(fileId);
+            index.writeInt(1);
+            index.writeLong(8 + keyBytes.length + valueBytes.length);
+            index.writeInt(keyBytes.length);
+            index.write(keyBytes);
+            index.writeLong(0);
+        }
+    }
+    
     @Test
     void testStoreStats() {
         // Test getting store statistics
@@ -0,0 +1,62 @@
+package com.kvstore.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LZ4CodecTest {
+    
+    private static byte[] roundTrip(byte[] input) throws IOException {
+        byte[] compressed = new byte[LZ4Codec.maxCompressedLength(input.length)];
+        int compressedLength = LZ4Codec.compress(input, 0, input.length, compressed, 0);
+        byte[] output = new byte[input.length];
+        LZ4Codec.decompress(compressed, 0, compressedLength, output, 0, input.length);
+        return output;
+    }
+    
+    @Test
+    void testRoundTripRepetitiveData() throws IOException {
+        // Test that JSON-like data compresses and decompresses unchanged
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"user").append(i).append("\",\"active\":true},");
+        }
+        byte[] input = json.append("]").toString().getBytes(StandardCharsets.UTF_8);
+        
+        byte[] compressed = new byte[LZ4Codec.maxCompressedLength(input.length)];
+        int compressedLength = LZ4Codec.compress(input, 0, input.length, compressed, 0);
+        assertTrue(compressedLength < input.length / 2);
+        assertArrayEquals(input, roundTrip(input));
+    }
+    
+    @Test
+    void testRoundTripEdgeCases() throws IOException {
+        // Test empty, tiny, incompressible and long-run inputs
+        assertArrayEquals(new byte[0], roundTrip(new byte[0]));
+        assertArrayEquals(new byte[] {1, 2, 3}, roundTrip(new byte[] {1, 2, 3}));
+        
+        byte[] random = new byte[5000];
+        new Random(42).nextBytes(random);
+        assertArrayEquals(random, roundTrip(random));
+        
+        byte[] zeros = new byte[100_000];
+        assertArrayEquals(zeros, roundTrip(zeros));
+    }
+    
+    @Test
+    void testCorruptInputIsRejected() {
+        // Test that a truncated block is reported instead of producing garbage
+        byte[] input = new byte[1000];
+        Arrays.fill(input, (byte) 'a');
+        byte[] compressed = new byte[LZ4Codec.maxCompressedLength(input.length)];
+        int compressedLength = LZ4Codec.compress(input, 0, input.length, compressed, 0);
+        
+        assertThrows(IOException.class, () ->
+            LZ4Codec.decompress(compressed, 0, compressedLength - 1, new byte[1000], 0, 1000));
+    }
+}
@@ -5,11 +5,18 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.io.TempDir;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -130,4 +137,151 @@ public class PersistentKVStoreTest {
         assertTrue(kvStore.put("key1", "newvalue1"));
         assertEquals("newvalue1", kvStore.read("key1").orElse(null));
     }
+    
+    @Test
+    void testOSBufferedDurability() throws IOException {
+        // Test that a store without explicit syncs still reads back and persists on close
+        kvStore.close();
+        kvStore = new PersistentKVStore(tempDir.toString(), DurabilityPolicy.osBuffered());
+        assertEquals(DurabilityPolicy.Mode.OS_BUFFERED, kvStore.getDurability().getMode());
+        
+        assertTrue(kvStore.put("key1", "value1"));
+        assertTrue(kvStore.batchPut(List.of("key2", "key3"), List.of("value2", "value3")));
+        assertEquals("value1", kvStore.read("key1").orElse(null));
+        kvStore.close();
+        
+        kvStore = new PersistentKVStore(tempDir.toString());
+        assertEquals("value1", kvStore.read("key1").orElse(null));
+        assertEquals("value3", kvStore.read("key3").orElse(null));
+    }
+    
+    @Test
+    void testConcurrentReadsDuringWrites() throws Exception {
+        // Test that readers running alongside a writer always see complete records
+        kvStore.close();
+        kvStore = new PersistentKVStore(tempDir.toString(), DurabilityPolicy.osBuffered());
+        for (int i = 0; i < 100; i++) {
+            kvStore.put("key" + i, "value" + i + "-0");
+        }
+        
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger badReads = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(() -> {
+                while (writing.get()) {
+                    for (int i = 0; i < 100; i++) {
+                        String value = kvStore.read("key" + i).orElse(null);
+                        if (value == null || !value.startsWith("value" + i + "-")) {
+                            badReads.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        
+        for (int round = 1; round <= 20; round++) {
+            for (int i = 0; i < 100; i++) {
+                kvStore.put("key" + i, "value" + i + "-" + round);
+            }
+        }
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        
+        assertEquals(0, badReads.get());
+        assertEquals("value42-20", kvStore.read("key42").orElse(null));
+    }
+    
+    @Test
+    void testIndexRebuiltFromDataAfterCrash() throws IOException {
+        // Test that an instance abandoned without close loses neither puts nor
+        // deletes, and that a torn record at the end of the data file is dropped
+        kvStore.put("key1", "value1");
+        kvStore.batchPut(List.of("key2", "key3"), List.of("value2", "value3"));
+        kvStore.put("key1", "value1b");
+        assertTrue(kvStore.delete("key2"));
+        
+        // Simulate a crash in the middle of appending a record
+        Files.write(tempDir.resolve("kvstore.dat"), new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+        
+        kvStore = new PersistentKVStore(tempDir.toString());
+        assertEquals("value1b", kvStore.read("key1").orElse(null));
+        assertFalse(kvStore.read("key2").isPresent());
+        assertEquals("value3", kvStore.read("key3").orElse(null));
+        
+        // New records must land after the last intact one
+        assertTrue(kvStore.put("key4", "value4"));
+        kvStore = new PersistentKVStore(tempDir.toString());
+        assertEquals("value4", kvStore.read("key4").orElse(null));
+        assertEquals("value1b", kvStore.read("key1").orElse(null));
+    }
+    
+    @Test
+    void testIndexSnapshotCatchesUpWithData() throws IOException {
+        // Test that a snapshot from close is extended with later records, and
+        // that a corrupt snapshot falls back to a full rebuild
+        kvStore.put("key1", "value1");
+        kvStore.put("key2", "value2");
+        kvStore.close();
+        assertTrue(Files.exists(tempDir.resolve("kvstore.index")));
+        
+        kvStore = new PersistentKVStore(tempDir.toString());
+        kvStore.put("key3", "value3");
+        kvStore.delete("key1");
+        
+        // Abandon the instance, so the snapshot on disk is stale
+        kvStore = new PersistentKVStore(tempDir.toString());
+        assertFalse(kvStore.read("key1").isPresent());
+        assertEquals("value2", kvStore.read("key2").orElse(null));
+        assertEquals("value3", kvStore.read("key3").orElse(null));
+        kvStore.close();
+        
+        byte[] snapshot = Files.readAllBytes(tempDir.resolve("kvstore.index"));
+        snapshot[snapshot.length / 2] ^= 0x5A;
+        Files.write(tempDir.resolve("kvstore.index"), snapshot);
+        kvStore = new PersistentKVStore(tempDir.toString());
+        assertFalse(kvStore.read("key1").isPresent());
+        assertEquals("value2", kvStore.read("key2").orElse(null));
+        assertEquals("value3", kvStore.read("key3").orElse(null));
+    }
+    
+    @Test
+    void testLegacyTextIndexMigration() throws IOException {
+        // Test that a text index from an older version is taken as the whole
+        // truth: records it leaves out belong to deleted keys and stay deleted
+        Path legacyDir = tempDir.resolve("legacy");
+        Files.createDirectories(legacyDir);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(legacyDir.resolve("kvstore.dat")))) {
+            writeLegacyRecord(out, "a", "value-a");
+            writeLegacyRecord(out, "b", "value-b"); // Deleted before the old version closed
+        }
+        Files.write(legacyDir.resolve("kvstore.idx"), List.of("a|0"));
+        
+        kvStore.close();
+        kvStore = new PersistentKVStore(legacyDir.toString());
+        assertEquals("value-a", kvStore.read("a").orElse(null));
+        assertFalse(kvStore.read("b").isPresent());
+        assertFalse(Files.exists(legacyDir.resolve("kvstore.idx")));
+        assertTrue(Files.exists(legacyDir.resolve("kvstore.index")));
+        
+        kvStore.put("c", "value-c");
+        kvStore.close();
+        kvStore = new PersistentKVStore(legacyDir.toString());
+        assertEquals("value-a", kvStore.read("a").orElse(null));
+        assertFalse(kvStore.read("b").isPresent());
+        assertEquals("value-c", kvStore.read("c").orElse(null));
+    }
+    
+    private static void writeLegacyRecord(DataOutputStream out, String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        out.writeInt(valueBytes.length);
+        out.write(valueBytes);
+    }
 }